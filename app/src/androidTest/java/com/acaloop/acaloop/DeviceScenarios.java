@@ -0,0 +1,483 @@
+package com.acaloop.acaloop;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The whole engine against a SimulatedAudioDevice: how well the latency test recovers a known delay,
+ * how far off an overdub lands from the loop, and how fast the render path runs. The player and recorder
+ * run on their own threads against the device, exactly as they would against a phone's.
+ * Every device misbehaviour is tried in turn. Each scenario logs what it measured, and fails past its threshold.
+ *
+ * Runs with the instrumentation tests only, on a device or emulator.
+ */
+public class DeviceScenarios extends TestCase
+{
+    final static String LOG_TAG = DeviceScenarios.class.getSimpleName();
+
+    final static int SAMPLE_RATE = RecordActivity.SAMPLE_RATE_HZ;
+    final static int OUTPUT_CHANNELS = 2;
+    final static int PERIOD_FRAMES = 256;
+    final static int OUTPUT_BUFFER_FRAMES = 4*PERIOD_FRAMES;
+    //The recorder reads about this much at a time.
+    final static int READ_FRAMES = 1792;
+    final static long SEED = 42;
+    //Real mics are never digitally silent, apart from the zeroes some give right after they're started.
+    final static float NOISE_FLOOR = 4f/Short.MAX_VALUE;
+    final static int STARTUP_SILENCE_FRAMES = PERIOD_FRAMES;
+    //How long the engine's threads get to do something before the scenario gives up on them.
+    final static long TIMEOUT_MS = 60000;
+
+    final static String[] DEVICES = {"clean", "jitter", "short reads", "failed reads", "drift", "noise", "stalls"};
+    //Worst error allowed on each device, in ms, -1 to only report it. A failed read ends the take, so what's left
+    //of it may not hold the tone or the clicks. Stalls underrun the output, which delays everything played
+    //after them by however long the stall was, and nothing can line that up.
+    final static double[] LATENCY_LIMITS_MS = {1, 1, 1, -1, 1, 1, -1};
+    final static double[] ALIGNMENT_LIMITS_MS = {1, 1, 1, -1, 1, 1, -1};
+    //Latencies the latency test should find, in ms, inside the window it searches.
+    final static int[] LATENCIES_MS = {110, 150, 190, 230};
+    final static int OVERDUB_LATENCY_MS = 160;
+    //Fraction of real time the render thread may spend mixing.
+    final static double MAX_MIX_LOAD = 0.5;
+
+    /**
+     * Something to wait for the engine's threads to get done.
+     */
+    interface Condition
+    {
+        boolean isMet();
+    }
+
+    /**
+     * A player and recorder on one device.
+     */
+    static class Engine
+    {
+        final SimulatedAudioDevice device;
+        final ObservableMediaPlayer player;
+        final ObservableRecorder recorder;
+
+        Engine(SimulatedAudioDevice device)
+        {
+            this.device = device;
+            player = new ObservableMediaPlayer(device.getOutput());
+            recorder = new ObservableRecorder(player, device.getInput(), READ_FRAMES);
+        }
+    }
+
+    /**
+     * A device with one kind of misbehaviour.
+     */
+    static SimulatedAudioDevice makeDevice(String kind, int latencyFrames, long seed)
+    {
+        SimulatedAudioDevice device = new SimulatedAudioDevice(SAMPLE_RATE, OUTPUT_CHANNELS, latencyFrames,
+                PERIOD_FRAMES, OUTPUT_BUFFER_FRAMES, seed);
+        device.setNoise(NOISE_FLOOR);
+        device.setStartupSilence(STARTUP_SILENCE_FRAMES);
+        switch(kind)
+        {
+            case "jitter":
+                device.setReadJitter(PERIOD_FRAMES/2);
+                break;
+            case "short reads":
+                device.setShortReadChance(0.3);
+                break;
+            case "failed reads":
+                device.setFailedReadChance(0.05);
+                break;
+            case "drift":
+                device.setDriftPpm(100);
+                break;
+            case "noise":
+                device.setNoise(0.05f);
+                break;
+            case "stalls":
+                device.setStalls(0.02, 2*OUTPUT_BUFFER_FRAMES);
+                break;
+        }
+        return device;
+    }
+
+    /**
+     * Poll until the condition is met.
+     * @param what What's being waited for, for the failure
+     */
+    static void waitFor(String what, Condition condition)
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(!condition.isMet())
+        {
+            if(System.currentTimeMillis() > deadline)
+            {
+                fail("Timed out waiting for " + what);
+            }
+            try
+            {
+                Thread.sleep(1);
+            }
+            catch(InterruptedException e)
+            {
+                fail("Interrupted waiting for " + what);
+            }
+        }
+    }
+
+    /**
+     * Run the latency test as the app does, and set the recorder's latency to what it found.
+     * @return The latency found, in samples
+     */
+    static int measureLatency(Engine engine)
+    {
+        ObservableMediaPlayer player = engine.player;
+        ObservableRecorder recorder = engine.recorder;
+        final AtomicReference<short[]> recording = new AtomicReference<>();
+        Observer observer = new Observer()
+        {
+            @Override
+            public void update(Observable observable, Object data)
+            {
+                if(data instanceof short[])
+                {
+                    recording.set((short[])data);
+                }
+            }
+        };
+
+        player.setupLatencyTest();
+        recorder.addObserver(observer);
+        recorder.startRecording(true);
+        waitFor("the latency test", new Condition()
+        {
+            @Override
+            public boolean isMet()
+            {
+                return recording.get() != null;
+            }
+        });
+        recorder.deleteObserver(observer);
+        player.stopPlayback();
+        player.cleanupLatencyTest();
+
+        int latency = LatencyDetector.findLatency(recording.get(), player.getSampleRate(), player.getLatencyToneFrequency(),
+                player.getLatencyToneDurationInFrames(), recorder.getChannelCount(), player.getFramesPerPeriod());
+        recorder.setLatency(latency);
+        return latency;
+    }
+
+    /**
+     * How close the latency test gets to the device's real latency.
+     */
+    public void testLatencyRecovery()
+    {
+        for(int d = 0; d < DEVICES.length; d++)
+        {
+            StringBuilder errors = new StringBuilder();
+            int worst = 0;
+            for(int latencyMs : LATENCIES_MS)
+            {
+                int latency = latencyMs*SAMPLE_RATE/1000;
+                int measured = measureLatency(new Engine(makeDevice(DEVICES[d], latency, SEED + latencyMs)));
+                //The recorder strips the input's startup silence before it looks for the tone.
+                int error = measured - (latency - STARTUP_SILENCE_FRAMES);
+                errors.append(' ').append(error);
+                worst = Math.max(worst, Math.abs(error));
+            }
+            double worstMs = worst*1000.0/SAMPLE_RATE;
+            Log.d(LOG_TAG, String.format(Locale.US, "%s: latency test error (frames):%s, worst %.2f ms", DEVICES[d], errors, worstMs));
+            if(LATENCY_LIMITS_MS[d] >= 0)
+            {
+                assertTrue(DEVICES[d] + ": latency test off by " + worstMs + " ms", worstMs <= LATENCY_LIMITS_MS[d]);
+            }
+        }
+    }
+
+    /**
+     * Overdub a loop of clicks over a bed, with the latency the latency test found. The overdub hears the loop,
+     * so once the recorder has lined it up each click should be where it is in the loop, right up to the end.
+     */
+    public void testOverdubAlignment()
+    {
+        int loopLength = 2*SAMPLE_RATE;
+        int clickSpacing = SAMPLE_RATE/2;
+        short[] loop = makeClickLoop(loopLength, clickSpacing);
+
+        for(int d = 0; d < DEVICES.length; d++)
+        {
+            Engine engine = new Engine(makeDevice(DEVICES[d], OVERDUB_LATENCY_MS*SAMPLE_RATE/1000, SEED));
+            measureLatency(engine);
+            engine.player.update(engine.recorder, new Layer(SampleBuffer.copyOf(loop, engine.player.getSlabPool()), 1));
+            Layer layer = recordOverdub(engine, ALIGNMENT_LIMITS_MS[d] >= 0);
+            if(layer == null)
+            {
+                Log.d(LOG_TAG, String.format(Locale.US, "%s: no overdub, underruns %d", DEVICES[d], engine.device.getUnderruns()));
+                continue;
+            }
+            SampleBuffer overdub = layer.getSamples();
+            assertEquals(DEVICES[d] + ": overdub length", loopLength, overdub.getLength());
+            short[] heard = overdub.toArray(0, loopLength);
+
+            List<Integer> errors = new ArrayList<>();
+            //Clicks are half way between the spacing, clear of the take's fades at both ends.
+            for(int click = clickSpacing/2; click < loopLength; click += clickSpacing)
+            {
+                int played = findOnset(loop, click - clickSpacing/4, click + clickSpacing/4);
+                int found = findOnset(heard, played - clickSpacing/4, played + clickSpacing/4);
+                errors.add(found < 0 ? Integer.MAX_VALUE : found - played);
+            }
+            int worst = 0;
+            for(int error : errors)
+            {
+                worst = Math.max(worst, Math.abs(error));
+            }
+            //A take cut short is padded with silence, and only padding is ever exactly zero over the bed.
+            int trailingZeroes = 0;
+            while(trailingZeroes < loopLength && heard[loopLength - 1 - trailingZeroes] == 0)
+            {
+                trailingZeroes++;
+            }
+
+            double worstMs = worst*1000.0/SAMPLE_RATE;
+            Log.d(LOG_TAG, String.format(Locale.US, "%s: overdub alignment errors (frames): %s, worst %.2f ms, trailing zeroes %d, underruns %d",
+                    DEVICES[d], errors, worstMs, trailingZeroes, engine.device.getUnderruns()));
+            if(ALIGNMENT_LIMITS_MS[d] >= 0)
+            {
+                assertTrue(DEVICES[d] + ": overdub off by " + worstMs + " ms", worstMs <= ALIGNMENT_LIMITS_MS[d]);
+                //The fade out leaves the very last sample at zero.
+                assertTrue(DEVICES[d] + ": overdub cut short by " + trailingZeroes + " samples", trailingZeroes <= 1);
+            }
+        }
+    }
+
+    /**
+     * A quiet bed, so every sample of the loop is heard, with a 5ms click half way through every spacing.
+     */
+    static short[] makeClickLoop(int loopLength, int clickSpacing)
+    {
+        short[] loop = new short[loopLength];
+        for(int i = 0; i < loopLength; i++)
+        {
+            loop[i] = (short)(Short.MAX_VALUE*0.1*Math.sin(2*Math.PI*220*i/SAMPLE_RATE));
+        }
+        for(int click = clickSpacing/2; click < loopLength; click += clickSpacing)
+        {
+            for(int i = 0; i < SAMPLE_RATE/200; i++)
+            {
+                loop[click + i] = (short)(Short.MAX_VALUE*0.8*Math.sin(2*Math.PI*1000*i/SAMPLE_RATE));
+            }
+        }
+        return loop;
+    }
+
+    /**
+     * Play the loop, press record a quarter of the way in, and stop half way through the take,
+     * as a player would. The take runs from one loop boundary to the next.
+     * @param mustCommit Whether the device is expected to get the take through, otherwise it may be lost
+     * @return The overdub's layer, null if the take was lost
+     */
+    static Layer recordOverdub(final Engine engine, final boolean mustCommit)
+    {
+        final Transport transport = engine.player.getTransport();
+        final int loopLength = engine.player.getLoopLengthInFrames();
+        engine.player.startPlayback();
+        waitFor("playback", new Condition()
+        {
+            @Override
+            public boolean isMet()
+            {
+                return transport.getRenderedFrames() >= loopLength/4;
+            }
+        });
+        engine.recorder.startRecording();
+        waitFor("the take to get going", new Condition()
+        {
+            @Override
+            public boolean isMet()
+            {
+                long startFrame = transport.getRecordStartFrame();
+                return startFrame >= 0 && transport.getRenderedFrames() >= startFrame + loopLength/2;
+            }
+        });
+        engine.recorder.stopRecording();
+        waitFor("the overdub", new Condition()
+        {
+            @Override
+            public boolean isMet()
+            {
+                return engine.player.getLayers().size() == 2 || (!mustCommit && !engine.recorder.isRecording());
+            }
+        });
+        engine.player.stopPlayback();
+        List<Layer> layers = engine.player.getLayers();
+        return layers.size() == 2 ? layers.get(1) : null;
+    }
+
+    /**
+     * @return First index in [from, to) where the audio gets well above the background, -1 if it doesn't
+     */
+    static int findOnset(short[] data, int from, int to)
+    {
+        from = Math.max(0, from);
+        to = Math.min(data.length, to);
+        int peak = 0;
+        for(int i = from; i < to; i++)
+        {
+            peak = Math.max(peak, Math.abs(data[i]));
+        }
+        for(int i = from; i < to; i++)
+        {
+            if(Math.abs(data[i]) > peak/2)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Eight layers of tones and noise, spread across the stereo field, two of them pitch shifted.
+     */
+    static List<Layer> makeBusyLayers(int loopLength, DirectBufferPool slabPool)
+    {
+        Random random = new Random(SEED);
+        List<Layer> layers = new ArrayList<>();
+        for(int i = 0; i < 8; i++)
+        {
+            short[] samples = new short[loopLength];
+            double frequency = 110*(i + 1);
+            for(int j = 0; j < loopLength; j++)
+            {
+                samples[j] = (short)(4000*Math.sin(2*Math.PI*frequency*j/SAMPLE_RATE) + random.nextGaussian()*200);
+            }
+            Layer layer = new Layer(SampleBuffer.copyOf(samples, slabPool), 1/8f);
+            layer.setPan(i/3.5f - 1);
+            if(i >= 6)
+            {
+                layer.setPitchShift(i == 6 ? 3 : -5);
+            }
+            layers.add(layer);
+        }
+        return layers;
+    }
+
+    /**
+     * Time the player's own render thread over a busy loop, from its metrics.
+     */
+    public void testRenderThroughput()
+    {
+        renderThroughput("clean");
+        renderThroughput("stalls");
+    }
+
+    private void renderThroughput(String kind)
+    {
+        SimulatedAudioDevice device = makeDevice(kind, 0, SEED);
+        ObservableMediaPlayer player = new ObservableMediaPlayer(device.getOutput());
+        player.getLayers().addAll(makeBusyLayers(4*SAMPLE_RATE, player.getSlabPool()));
+        final Transport transport = player.getTransport();
+
+        player.startPlayback();
+        //The first seconds are the JIT warming up.
+        waitFor("warm up", new Condition()
+        {
+            @Override
+            public boolean isMet()
+            {
+                return transport.getRenderedFrames() >= 5L*SAMPLE_RATE;
+            }
+        });
+        EngineMetrics metrics = player.getMetrics();
+        metrics.reset();
+        waitFor("a minute of audio", new Condition()
+        {
+            @Override
+            public boolean isMet()
+            {
+                return transport.getRenderedFrames() >= 65L*SAMPLE_RATE;
+            }
+        });
+        player.stopPlayback();
+
+        LatencyHistogram blockTimes = metrics.getRenderBlockTime();
+        double mixLoad = metrics.getMixLoad();
+        Log.d(LOG_TAG, String.format(Locale.US, "%s: %.0fx real time, block us p50/p99/max %d/%d/%d, device underruns %d (%d frames)",
+                kind, 1/mixLoad, blockTimes.getValueAtPercentile(50)/1000, blockTimes.getValueAtPercentile(99)/1000,
+                blockTimes.getMax()/1000, device.getUnderruns(), device.getUnderrunFrames()));
+        assertTrue(kind + ": mix load " + mixLoad, mixLoad < MAX_MIX_LOAD);
+    }
+
+    /**
+     * Time offline rendering and normalizing, serial against spread over every core,
+     * and check the two give exactly the same samples.
+     */
+    public void testOfflineRender()
+    {
+        //Long enough to time, short enough that the four sets of layers don't tie up too much of a phone's memory.
+        int frames = 20*SAMPLE_RATE;
+        DirectBufferPool slabPool = new DirectBufferPool(ObservableMediaPlayer.SLAB_BYTES, 0);
+        int cores = Runtime.getRuntime().availableProcessors();
+        OfflineRenderer serial = new OfflineRenderer(1);
+        OfflineRenderer parallel = new OfflineRenderer(cores);
+
+        //Once each to warm up, then timed.
+        List<Layer> warmUpLayers = makeBusyLayers(frames, slabPool);
+        serial.render(warmUpLayers, frames);
+        parallel.render(warmUpLayers, frames);
+        releaseLayers(warmUpLayers);
+        List<Layer> serialLayers = makeBusyLayers(frames, slabPool);
+        List<Layer> parallelLayers = makeBusyLayers(frames, slabPool);
+
+        long start = System.nanoTime();
+        float[] serialMix = serial.render(serialLayers, frames);
+        long serialNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        float[] parallelMix = parallel.render(parallelLayers, frames);
+        long parallelNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        serial.normalize(serialLayers, 0.9f);
+        long serialNormalizeNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        parallel.normalize(parallelLayers, 0.9f);
+        long parallelNormalizeNanos = System.nanoTime() - start;
+
+        boolean identical = Arrays.equals(serialMix, parallelMix);
+        for(int i = 0; i < serialLayers.size(); i++)
+        {
+            SampleBuffer a = serialLayers.get(i).getSamples();
+            SampleBuffer b = parallelLayers.get(i).getSamples();
+            for(int j = 0; j < frames && identical; j++)
+            {
+                identical = a.get(j) == b.get(j);
+            }
+        }
+        parallel.shutdown();
+        releaseLayers(serialLayers);
+        releaseLayers(parallelLayers);
+
+        Log.d(LOG_TAG, String.format(Locale.US, "%ds of 8 layers on %d cores: render %.0f/%.0f ms (%.1fx), normalize %.0f/%.0f ms (%.1fx), identical %b",
+                frames/SAMPLE_RATE, cores, serialNanos/1e6, parallelNanos/1e6, serialNanos/(double)parallelNanos,
+                serialNormalizeNanos/1e6, parallelNormalizeNanos/1e6, serialNormalizeNanos/(double)parallelNormalizeNanos, identical));
+        assertTrue("Parallel offline render differs from serial", identical);
+    }
+
+    /**
+     * Give the layers' audio back to their pool.
+     */
+    static void releaseLayers(List<Layer> layers)
+    {
+        for(Layer layer : layers)
+        {
+            layer.release();
+        }
+    }
+}
@@ -0,0 +1,592 @@
+package com.acaloop.acaloop;
+
+import java.util.Random;
+
+/**
+ * A pretend phone: an output and an input joined by an acoustic path, so whatever is played
+ * is captured again after the round trip latency. Everything it does wrong is configurable
+ * (read size jitter, short and failed reads, a writer that stalls long enough to underrun,
+ * input clock drift and background noise) and driven by a seeded random, so a run driven
+ * from one thread plays out exactly the same every time.
+ *
+ * The device keeps a clock of frames, which moves on only when the output is full and a write has to wait,
+ * or the input is empty and a read has to wait. Only a read with nothing playing waits out the period in real time.
+ *
+ * While the output plays, only the writer moves the clock: a read that has to wait waits for the writer,
+ * and the writer waits for the reader if the input is filling up, as if both ran in real time.
+ * So the engine's own playback and recording threads can drive it. What they hear is then the same
+ * every run, though how the reads and writes interleave isn't.
+ */
+public class SimulatedAudioDevice
+{
+    //What AudioRecord.read returns when it's not recording.
+    public final static int ERROR_INVALID_OPERATION = -3;
+
+    private final int sampleRate;
+    private final int outputChannelCount;
+    private final int latencyFrames;
+    //How much the clock moves on each time something has to wait: the device's period.
+    private final int periodFrames;
+    //One random per side, so the threads driving the two sides don't change each other's sequence.
+    private final Random outputRandom;
+    private final Random clockRandom;
+    private final Random inputRandom;
+    private final Random noiseRandom;
+
+    private int readJitterFrames;
+    private double shortReadChance;
+    private double failedReadChance;
+    private double stallChance;
+    private int stallFrames;
+    private double driftPpm;
+    private float noiseAmplitude;
+    private int startupSilenceFrames;
+
+    private final Output output = new Output();
+    private final Input input = new Input();
+
+    //Frames of the device clock so far.
+    private long clock;
+
+    //Queued output, mixed down to mono since that's all the mic would hear of it.
+    private final float[] outputQueue;
+    private int outputQueued;
+    private int outputReadIndex;
+    private boolean playing;
+    private boolean draining;
+    private long playbackHead;
+    private long underruns;
+    private long underrunFrames;
+    private boolean underrunning;
+
+    //What the mic hears, one value per clock frame.
+    private final float[] line;
+    private final int lineMask;
+
+    //Captured, waiting to be read.
+    private final short[] inputQueue;
+    private int inputQueued;
+    private int inputReadIndex;
+    private boolean recording;
+    //Where on the clock the next captured frame is taken, fractional when the clocks drift apart.
+    private double inputPosition;
+    //Captured frames still to be replaced by the input's startup silence.
+    private int silenceLeft;
+    private long overruns;
+
+    /**
+     * @param sampleRate Sample rate of both sides
+     * @param outputChannelCount Channels of the output, the input is mono
+     * @param latencyFrames Round trip latency, from a frame being played to it being captured
+     * @param periodFrames Frames the device moves on by at a time
+     * @param outputBufferFrames Frames the output can queue
+     * @param seed Seed for everything random
+     */
+    public SimulatedAudioDevice(int sampleRate, int outputChannelCount, int latencyFrames, int periodFrames, int outputBufferFrames, long seed)
+    {
+        this.sampleRate = sampleRate;
+        this.outputChannelCount = outputChannelCount;
+        this.latencyFrames = latencyFrames;
+        this.periodFrames = periodFrames;
+        outputRandom = new Random(seed);
+        clockRandom = new Random(seed + 1);
+        inputRandom = new Random(seed + 2);
+        noiseRandom = new Random(seed + 3);
+        outputQueue = new float[outputBufferFrames];
+        int lineLength = Integer.highestOneBit(latencyFrames + 8*periodFrames) << 1;
+        line = new float[lineLength];
+        lineMask = lineLength - 1;
+        inputQueue = new short[Math.max(8*periodFrames, sampleRate)];
+    }
+
+    /**
+     * @param frames Each wait moves the clock on by up to this many frames more than a period
+     */
+    public void setReadJitter(int frames)
+    {
+        readJitterFrames = frames;
+    }
+
+    /**
+     * @param chance Chance of a read returning fewer frames than it could
+     */
+    public void setShortReadChance(double chance)
+    {
+        shortReadChance = chance;
+    }
+
+    /**
+     * @param chance Chance of a read returning nothing at all
+     */
+    public void setFailedReadChance(double chance)
+    {
+        failedReadChance = chance;
+    }
+
+    /**
+     * @param chance Chance of a write arriving late, as if the writing thread hadn't been scheduled
+     * @param frames How late it arrives
+     */
+    public void setStalls(double chance, int frames)
+    {
+        stallChance = chance;
+        stallFrames = frames;
+    }
+
+    /**
+     * @param ppm How much faster the input's clock runs than the output's, in parts per million
+     */
+    public void setDriftPpm(double ppm)
+    {
+        driftPpm = ppm;
+    }
+
+    /**
+     * @param amplitude Peak of the noise added to the input, full scale 1
+     */
+    public void setNoise(float amplitude)
+    {
+        noiseAmplitude = amplitude;
+    }
+
+    /**
+     * @param frames Frames of exact digital silence the input gives after it's started, as some devices do
+     */
+    public void setStartupSilence(int frames)
+    {
+        startupSilenceFrames = frames;
+    }
+
+    public AudioOutput getOutput()
+    {
+        return output;
+    }
+
+    public AudioInput getInput()
+    {
+        return input;
+    }
+
+    public int getLatencyFrames()
+    {
+        return latencyFrames;
+    }
+
+    /**
+     * @return Times the output ran dry while playing
+     */
+    public synchronized long getUnderruns()
+    {
+        return underruns;
+    }
+
+    /**
+     * @return Frames of silence played because the output ran dry
+     */
+    public synchronized long getUnderrunFrames()
+    {
+        return underrunFrames;
+    }
+
+    /**
+     * @return Captured frames lost because nobody read them in time
+     */
+    public synchronized long getOverruns()
+    {
+        return overruns;
+    }
+
+    /**
+     * @return Captured frames that can be read without waiting
+     */
+    public synchronized int getAvailableInputFrames()
+    {
+        return inputQueued;
+    }
+
+    public synchronized long getClock()
+    {
+        return clock;
+    }
+
+    /**
+     * Let time pass: play what's queued, and capture what the mic hears.
+     */
+    private void advance(int frames)
+    {
+        //A period at a time, so the line never has to hold more than the latency and a period.
+        while(frames > 0)
+        {
+            int chunk = Math.min(frames, periodFrames);
+            play(chunk);
+            capture();
+            frames -= chunk;
+        }
+        //Readers waiting on the writer, and the writer waiting on readers.
+        notifyAll();
+    }
+
+    private void play(int frames)
+    {
+        for(int i = 0; i < frames; i++)
+        {
+            float sound = 0;
+            if(playing)
+            {
+                if(outputQueued > 0)
+                {
+                    sound = outputQueue[outputReadIndex];
+                    outputReadIndex = (outputReadIndex + 1) % outputQueue.length;
+                    outputQueued--;
+                    playbackHead++;
+                    underrunning = false;
+                }
+                else if(draining)
+                {
+                    playing = false;
+                    draining = false;
+                }
+                else
+                {
+                    underrunFrames++;
+                    if(!underrunning)
+                    {
+                        underruns++;
+                        underrunning = true;
+                    }
+                }
+            }
+            line[(int)(clock & lineMask)] = sound;
+            clock++;
+        }
+    }
+
+    /**
+     * Capture every frame the mic's clock has reached.
+     */
+    private void capture()
+    {
+        double step = 1/(1 + driftPpm/1000000);
+        while(recording && inputPosition <= clock - 1)
+        {
+            float sample = hear(inputPosition - latencyFrames);
+            if(silenceLeft > 0)
+            {
+                sample = 0;
+                silenceLeft--;
+            }
+            else if(noiseAmplitude > 0)
+            {
+                sample += (noiseRandom.nextFloat()*2 - 1)*noiseAmplitude;
+            }
+            sample = Math.max(-1, Math.min(1, sample));
+            if(inputQueued == inputQueue.length)
+            {
+                inputReadIndex = (inputReadIndex + 1) % inputQueue.length;
+                inputQueued--;
+                overruns++;
+            }
+            inputQueue[(inputReadIndex + inputQueued) % inputQueue.length] = (short)Math.round(sample*Short.MAX_VALUE);
+            inputQueued++;
+            inputPosition += step;
+        }
+    }
+
+    /**
+     * @return What was on the line at a point of the clock, between frames if need be
+     */
+    private float hear(double position)
+    {
+        if(position < 0 || position < clock - line.length)
+        {
+            return 0;
+        }
+        long frame = (long)position;
+        float fraction = (float)(position - frame);
+        float now = line[(int)(frame & lineMask)];
+        float next = frame + 1 < clock ? line[(int)((frame + 1) & lineMask)] : now;
+        return now + (next - now)*fraction;
+    }
+
+    /**
+     * @return How far to move the clock on for one wait
+     */
+    private int nextPeriod()
+    {
+        return periodFrames + (readJitterFrames > 0 ? clockRandom.nextInt(readJitterFrames + 1) : 0);
+    }
+
+    /**
+     * @return True iff only the writer moves the clock on, because the output is playing
+     */
+    private boolean isWriterClocked()
+    {
+        return playing && !draining;
+    }
+
+    /**
+     * Hold the writer back while the input is more than half full, until it's been read.
+     * A real reader keeps up in real time, however far ahead the writer's thread gets.
+     */
+    private void waitForReader()
+    {
+        while(recording && inputQueued > inputQueue.length/2)
+        {
+            try
+            {
+                wait();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Take mono frames into the output queue, waiting for room as needed.
+     */
+    private synchronized int queue(float[] mono, int frames)
+    {
+        if(stallChance > 0 && outputRandom.nextDouble() < stallChance)
+        {
+            waitForReader();
+            advance(stallFrames);
+        }
+        for(int i = 0; i < frames; i++)
+        {
+            while(outputQueued == outputQueue.length)
+            {
+                if(!playing)
+                {
+                    return i;
+                }
+                waitForReader();
+                advance(nextPeriod());
+            }
+            outputQueue[(outputReadIndex + outputQueued) % outputQueue.length] = mono[i];
+            outputQueued++;
+        }
+        return frames;
+    }
+
+    private class Output implements AudioOutput
+    {
+        //Scratch for mixing written blocks down to mono.
+        private float[] mono = new float[0];
+
+        @Override
+        public void play()
+        {
+            synchronized(SimulatedAudioDevice.this)
+            {
+                playing = true;
+                draining = false;
+                underrunning = false;
+                SimulatedAudioDevice.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void stop()
+        {
+            synchronized(SimulatedAudioDevice.this)
+            {
+                draining = true;
+                //A waiting reader moves the clock on itself from now.
+                SimulatedAudioDevice.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void flush()
+        {
+            synchronized(SimulatedAudioDevice.this)
+            {
+                outputQueued = 0;
+                playbackHead = 0;
+            }
+        }
+
+        @Override
+        public int write(short[] data, int offset, int length)
+        {
+            int frames = length/outputChannelCount;
+            float[] block = getMono(frames);
+            for(int i = 0; i < frames; i++)
+            {
+                float sum = 0;
+                for(int c = 0; c < outputChannelCount; c++)
+                {
+                    sum += data[offset + i*outputChannelCount + c];
+                }
+                block[i] = sum/(outputChannelCount*(float)Short.MAX_VALUE);
+            }
+            return queue(block, frames)*outputChannelCount;
+        }
+
+        @Override
+        public int write(float[] data, int offset, int length)
+        {
+            int frames = length/outputChannelCount;
+            float[] block = getMono(frames);
+            for(int i = 0; i < frames; i++)
+            {
+                float sum = 0;
+                for(int c = 0; c < outputChannelCount; c++)
+                {
+                    sum += data[offset + i*outputChannelCount + c];
+                }
+                block[i] = sum/outputChannelCount;
+            }
+            return queue(block, frames)*outputChannelCount;
+        }
+
+        private float[] getMono(int frames)
+        {
+            if(mono.length < frames)
+            {
+                mono = new float[frames];
+            }
+            return mono;
+        }
+
+        @Override
+        public boolean isFloat()
+        {
+            return true;
+        }
+
+        @Override
+        public long getPlaybackHeadPosition()
+        {
+            synchronized(SimulatedAudioDevice.this)
+            {
+                return playbackHead;
+            }
+        }
+
+        @Override
+        public int getChannelCount()
+        {
+            return outputChannelCount;
+        }
+
+        @Override
+        public int getSampleRate()
+        {
+            return sampleRate;
+        }
+
+        @Override
+        public void release()
+        {
+            stop();
+        }
+    }
+
+    private class Input implements AudioInput
+    {
+        @Override
+        public void startRecording()
+        {
+            synchronized(SimulatedAudioDevice.this)
+            {
+                recording = true;
+                inputQueued = 0;
+                inputPosition = clock;
+                silenceLeft = startupSilenceFrames;
+            }
+        }
+
+        @Override
+        public void stop()
+        {
+            synchronized(SimulatedAudioDevice.this)
+            {
+                recording = false;
+                SimulatedAudioDevice.this.notifyAll();
+            }
+        }
+
+        @Override
+        public boolean isRecording()
+        {
+            synchronized(SimulatedAudioDevice.this)
+            {
+                return recording;
+            }
+        }
+
+        @Override
+        public int read(short[] data, int offset, int length)
+        {
+            synchronized(SimulatedAudioDevice.this)
+            {
+                if(!recording)
+                {
+                    return ERROR_INVALID_OPERATION;
+                }
+                if(failedReadChance > 0 && inputRandom.nextDouble() < failedReadChance)
+                {
+                    return 0;
+                }
+
+                int frames = Math.min(length, inputQueue.length);
+                if(shortReadChance > 0 && frames > 1 && inputRandom.nextDouble() < shortReadChance)
+                {
+                    frames = 1 + inputRandom.nextInt(frames - 1);
+                }
+                while(inputQueued < frames)
+                {
+                    boolean clocked = isWriterClocked();
+                    try
+                    {
+                        //With nothing playing the mic keeps real time, so a writer that's about to start isn't left behind.
+                        SimulatedAudioDevice.this.wait(clocked ? 0 : Math.max(1, periodFrames*1000L/sampleRate));
+                    }
+                    catch(InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        return 0;
+                    }
+                    if(!recording)
+                    {
+                        return ERROR_INVALID_OPERATION;
+                    }
+                    if(!clocked && !isWriterClocked())
+                    {
+                        advance(nextPeriod());
+                    }
+                }
+                for(int i = 0; i < frames; i++)
+                {
+                    data[offset + i] = inputQueue[inputReadIndex];
+                    inputReadIndex = (inputReadIndex + 1) % inputQueue.length;
+                }
+                inputQueued -= frames;
+                SimulatedAudioDevice.this.notifyAll();
+                return frames;
+            }
+        }
+
+        @Override
+        public int getChannelCount()
+        {
+            return 1;
+        }
+
+        @Override
+        public int getSampleRate()
+        {
+            return sampleRate;
+        }
+
+        @Override
+        public void release()
+        {
+            stop();
+        }
+    }
+}
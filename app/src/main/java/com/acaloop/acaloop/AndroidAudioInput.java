@@ -0,0 +1,61 @@
+package com.acaloop.acaloop;
+
+import android.media.AudioRecord;
+
+/**
+ * The mic, through an AudioRecord.
+ */
+public class AndroidAudioInput implements AudioInput
+{
+    private final AudioRecord record;
+
+    /**
+     * @param record An initialized AudioRecord
+     */
+    public AndroidAudioInput(AudioRecord record)
+    {
+        this.record = record;
+    }
+
+    @Override
+    public void startRecording()
+    {
+        record.startRecording();
+    }
+
+    @Override
+    public void stop()
+    {
+        record.stop();
+    }
+
+    @Override
+    public boolean isRecording()
+    {
+        return record.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING;
+    }
+
+    @Override
+    public int read(short[] data, int offset, int length)
+    {
+        return record.read(data, offset, length);
+    }
+
+    @Override
+    public int getChannelCount()
+    {
+        return record.getChannelCount();
+    }
+
+    @Override
+    public int getSampleRate()
+    {
+        return record.getSampleRate();
+    }
+
+    @Override
+    public void release()
+    {
+        record.release();
+    }
+}
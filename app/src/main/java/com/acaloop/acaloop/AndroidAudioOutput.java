@@ -0,0 +1,85 @@
+package com.acaloop.acaloop;
+
+import android.annotation.TargetApi;
+import android.media.AudioTrack;
+
+/**
+ * The speakers or headphones, through an AudioTrack.
+ */
+public class AndroidAudioOutput implements AudioOutput
+{
+    private final AudioTrack track;
+    private final boolean isFloat;
+
+    /**
+     * @param track An initialized streaming AudioTrack
+     * @param isFloat True iff the track was made for ENCODING_PCM_FLOAT
+     */
+    public AndroidAudioOutput(AudioTrack track, boolean isFloat)
+    {
+        this.track = track;
+        this.isFloat = isFloat;
+    }
+
+    @Override
+    public void play()
+    {
+        track.play();
+    }
+
+    @Override
+    public void stop()
+    {
+        track.stop();
+    }
+
+    @Override
+    public void flush()
+    {
+        track.flush();
+    }
+
+    @Override
+    public int write(short[] data, int offset, int length)
+    {
+        return track.write(data, offset, length);
+    }
+
+    @TargetApi(21)
+    @Override
+    public int write(float[] data, int offset, int length)
+    {
+        return track.write(data, offset, length, AudioTrack.WRITE_BLOCKING);
+    }
+
+    @Override
+    public boolean isFloat()
+    {
+        return isFloat;
+    }
+
+    @Override
+    public long getPlaybackHeadPosition()
+    {
+        //The track's head is an unsigned 32 bit count.
+        return track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public int getChannelCount()
+    {
+        return track.getChannelCount();
+    }
+
+    @Override
+    public int getSampleRate()
+    {
+        return track.getSampleRate();
+    }
+
+    @Override
+    public void release()
+    {
+        track.release();
+    }
+}
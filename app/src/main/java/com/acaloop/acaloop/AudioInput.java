@@ -0,0 +1,32 @@
+package com.acaloop.acaloop;
+
+/**
+ * Where the recorder gets its audio from. On a device this is the mic, through AndroidAudioInput,
+ * elsewhere it can be a SimulatedAudioDevice.
+ */
+public interface AudioInput
+{
+    void startRecording();
+
+    void stop();
+
+    /**
+     * @return True iff started and not stopped since
+     */
+    boolean isRecording();
+
+    /**
+     * Blocks until some audio is available.
+     * @param data Where to put the samples
+     * @param offset Index of data to start at
+     * @param length The most samples wanted
+     * @return Samples read, which may be fewer than wanted. 0 or less if nothing could be read.
+     */
+    int read(short[] data, int offset, int length);
+
+    int getChannelCount();
+
+    int getSampleRate();
+
+    void release();
+}
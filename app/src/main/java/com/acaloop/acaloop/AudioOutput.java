@@ -0,0 +1,48 @@
+package com.acaloop.acaloop;
+
+/**
+ * Where the player sends its audio. On a device this is an AudioTrack, through AndroidAudioOutput,
+ * elsewhere it can be a SimulatedAudioDevice.
+ */
+public interface AudioOutput
+{
+    void play();
+
+    /**
+     * Stop once everything written so far has been played.
+     */
+    void stop();
+
+    /**
+     * Drop anything written but not yet played, and reset the playback head.
+     */
+    void flush();
+
+    /**
+     * Queue 16 bit samples, blocking until there's room for them.
+     * @return Samples taken
+     */
+    int write(short[] data, int offset, int length);
+
+    /**
+     * Queue float samples, blocking until there's room for them. Only for outputs where isFloat() is true.
+     * @return Samples taken
+     */
+    int write(float[] data, int offset, int length);
+
+    /**
+     * @return True iff the output takes float samples
+     */
+    boolean isFloat();
+
+    /**
+     * @return Frames played since the last flush
+     */
+    long getPlaybackHeadPosition();
+
+    int getChannelCount();
+
+    int getSampleRate();
+
+    void release();
+}
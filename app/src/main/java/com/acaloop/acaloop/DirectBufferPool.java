@@ -0,0 +1,161 @@
+package com.acaloop.acaloop;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * A pool of equally sized, direct, little-endian buffers.
+ * Direct buffers are expensive to allocate and never go through the java heap,
+ * so they're allocated up front and recycled instead of being made per block.
+ */
+public class DirectBufferPool
+{
+    /**
+     * A pooled buffer, along with a 16-bit view of it so PCM can be copied in bulk without creating a new view each time.
+     */
+    public static class Block
+    {
+        public final ByteBuffer bytes;
+        public final ShortBuffer shorts;
+
+        private Block(int sizeInBytes)
+        {
+            bytes = ByteBuffer.allocateDirect(sizeInBytes).order(ByteOrder.LITTLE_ENDIAN);
+            shorts = bytes.asShortBuffer();
+        }
+
+        /**
+         * Make the byte buffer cover exactly the shorts that have been put into the short view.
+         */
+        public void flipShorts()
+        {
+            bytes.limit(shorts.position()*2);
+            bytes.position(0);
+        }
+
+        /**
+         * Empty both views so the block can be filled again.
+         */
+        public void clear()
+        {
+            bytes.clear();
+            shorts.clear();
+        }
+    }
+
+    private final int blockSizeInBytes;
+    private Block[] free;
+    private int freeCount;
+    private int allocated;
+    private final int initialBlocks;
+    //Occupancy, for the engine metrics.
+    private int inUse;
+    private int peakInUse;
+    private long acquires;
+
+    /**
+     * @param blockSizeInBytes The size of each buffer, should be a multiple of the frame size
+     * @param initialBlocks The number of buffers allocated immediately
+     */
+    public DirectBufferPool(int blockSizeInBytes, int initialBlocks)
+    {
+        this.blockSizeInBytes = blockSizeInBytes;
+        free = new Block[Math.max(1, initialBlocks)];
+        for(int i = 0; i < initialBlocks; i++)
+        {
+            free[freeCount++] = new Block(blockSizeInBytes);
+        }
+        allocated = initialBlocks;
+        this.initialBlocks = initialBlocks;
+    }
+
+    /**
+     * Take a cleared buffer from the pool. Only allocates if every buffer is in use.
+     * @return A cleared buffer
+     */
+    public synchronized Block acquire()
+    {
+        acquires++;
+        inUse++;
+        peakInUse = Math.max(peakInUse, inUse);
+        if(freeCount == 0)
+        {
+            allocated++;
+            return new Block(blockSizeInBytes);
+        }
+        Block block = free[--freeCount];
+        free[freeCount] = null;
+        return block;
+    }
+
+    /**
+     * Give a buffer back to the pool.
+     * @param block A buffer acquired from this pool
+     */
+    public synchronized void release(Block block)
+    {
+        block.clear();
+        inUse--;
+        if(freeCount == free.length)
+        {
+            Block[] grown = new Block[free.length*2];
+            System.arraycopy(free, 0, grown, 0, freeCount);
+            free = grown;
+        }
+        free[freeCount++] = block;
+    }
+
+    public int getBlockSizeInBytes()
+    {
+        return blockSizeInBytes;
+    }
+
+    /**
+     * @return The number of buffers this pool has ever allocated
+     */
+    public synchronized int getAllocatedCount()
+    {
+        return allocated;
+    }
+
+    /**
+     * @return The number of buffers currently sitting in the pool
+     */
+    public synchronized int getFreeCount()
+    {
+        return freeCount;
+    }
+
+    /**
+     * @return The number of buffers acquired and not yet released
+     */
+    public synchronized int getInUseCount()
+    {
+        return inUse;
+    }
+
+    /**
+     * @return The most buffers that have ever been in use at once
+     */
+    public synchronized int getPeakInUseCount()
+    {
+        return peakInUse;
+    }
+
+    /**
+     * @return The number of times a buffer has been acquired
+     */
+    public synchronized long getAcquireCount()
+    {
+        return acquires;
+    }
+
+    /**
+     * @return The number of buffers allocated because the pool had run dry, 0 if it was sized well
+     */
+    public synchronized int getMissCount()
+    {
+        return allocated - initialBlocks;
+    }
+}
@@ -0,0 +1,240 @@
+package com.acaloop.acaloop;
+
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Everything we measure about the audio engine while it runs.
+ * The audio threads only ever do atomic updates here, so recording never allocates or blocks.
+ * Anything else can query the values at any time, or have them dumped to the log periodically.
+ */
+public class EngineMetrics
+{
+    final static String LOG_TAG = EngineMetrics.class.getSimpleName();
+
+    //Time taken to mix and convert one render block.
+    private final LatencyHistogram renderBlockTime = new LatencyHistogram();
+    //Time taken to handle one captured block once it's been read.
+    private final LatencyHistogram captureBlockTime = new LatencyHistogram();
+
+    private final AtomicLong underruns = new AtomicLong();
+    private final AtomicLong readStarvations = new AtomicLong();
+    private final AtomicLong writeStarvations = new AtomicLong();
+
+    //For the mix load, time spent rendering against the duration of the audio rendered.
+    private final AtomicLong renderBusyNanos = new AtomicLong();
+    private final AtomicLong renderAudioNanos = new AtomicLong();
+
+    private volatile int roundTripLatencyFrames;
+    private volatile int sampleRate = RecordActivity.SAMPLE_RATE_HZ;
+    //Where all the audio is kept, for its occupancy.
+    private volatile DirectBufferPool slabPool;
+
+    private volatile Thread dumpThread;
+
+    /**
+     * @param nanos Time spent rendering the block
+     * @param frames Frames in the block
+     */
+    public void recordRenderBlock(long nanos, int frames)
+    {
+        renderBlockTime.record(nanos);
+        renderBusyNanos.addAndGet(nanos);
+        renderAudioNanos.addAndGet(frames*1000000000L/sampleRate);
+    }
+
+    /**
+     * @param nanos Time spent handling the captured block
+     */
+    public void recordCaptureBlock(long nanos)
+    {
+        captureBlockTime.record(nanos);
+    }
+
+    /**
+     * The track ran out of audio to play.
+     */
+    public void recordUnderrun()
+    {
+        underruns.incrementAndGet();
+    }
+
+    /**
+     * The recorder gave us less than we asked for, or nothing at all.
+     */
+    public void recordReadStarvation()
+    {
+        readStarvations.incrementAndGet();
+    }
+
+    /**
+     * The track accepted less than we gave it.
+     */
+    public void recordWriteStarvation()
+    {
+        writeStarvations.incrementAndGet();
+    }
+
+    /**
+     * @param frames Round trip latency measured by the latency test
+     */
+    public void setRoundTripLatencyFrames(int frames)
+    {
+        roundTripLatencyFrames = frames;
+    }
+
+    public void setSampleRate(int sampleRate)
+    {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * @param pool The pool the engine keeps its audio in
+     */
+    public void setSlabPool(DirectBufferPool pool)
+    {
+        slabPool = pool;
+    }
+
+    public DirectBufferPool getSlabPool()
+    {
+        return slabPool;
+    }
+
+    public LatencyHistogram getRenderBlockTime()
+    {
+        return renderBlockTime;
+    }
+
+    public LatencyHistogram getCaptureBlockTime()
+    {
+        return captureBlockTime;
+    }
+
+    public long getUnderruns()
+    {
+        return underruns.get();
+    }
+
+    public long getReadStarvations()
+    {
+        return readStarvations.get();
+    }
+
+    public long getWriteStarvations()
+    {
+        return writeStarvations.get();
+    }
+
+    public int getRoundTripLatencyFrames()
+    {
+        return roundTripLatencyFrames;
+    }
+
+    /**
+     * @return Round trip latency in milliseconds
+     */
+    public double getRoundTripLatencyMs()
+    {
+        return roundTripLatencyFrames*1000.0/sampleRate;
+    }
+
+    /**
+     * @return Fraction of real time spent mixing, 1 means the mix only just keeps up.
+     */
+    public double getMixLoad()
+    {
+        long audio = renderAudioNanos.get();
+        return audio == 0 ? 0 : renderBusyNanos.get()/(double)audio;
+    }
+
+    /**
+     * Forget everything but the measured latency.
+     */
+    public void reset()
+    {
+        renderBlockTime.reset();
+        captureBlockTime.reset();
+        underruns.set(0);
+        readStarvations.set(0);
+        writeStarvations.set(0);
+        renderBusyNanos.set(0);
+        renderAudioNanos.set(0);
+    }
+
+    /**
+     * @return A human readable summary of all the metrics.
+     */
+    public String dump()
+    {
+        return "render us p50/p99/max: " + describe(renderBlockTime) +
+                " capture us p50/p99/max: " + describe(captureBlockTime) +
+                " underruns: " + getUnderruns() +
+                " read starvations: " + getReadStarvations() +
+                " write starvations: " + getWriteStarvations() +
+                " latency ms: " + String.format(Locale.US, "%.1f", getRoundTripLatencyMs()) +
+                " mix load: " + String.format(Locale.US, "%.1f%%", getMixLoad()*100) +
+                describeSlabs();
+    }
+
+    private String describeSlabs()
+    {
+        DirectBufferPool pool = slabPool;
+        if(pool == null)
+            return "";
+
+        return " slabs in use/peak/allocated/misses: " + pool.getInUseCount() + "/" + pool.getPeakInUseCount() + "/" +
+                pool.getAllocatedCount() + "/" + pool.getMissCount();
+    }
+
+    private static String describe(LatencyHistogram histogram)
+    {
+        return histogram.getValueAtPercentile(50)/1000 + "/" +
+                histogram.getValueAtPercentile(99)/1000 + "/" +
+                histogram.getMax()/1000;
+    }
+
+    /**
+     * Log the metrics every so often until stopped.
+     * @param periodMs Time between dumps
+     */
+    public synchronized void startPeriodicDump(final long periodMs)
+    {
+        if(dumpThread != null)
+            return;
+
+        dumpThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while(dumpThread == Thread.currentThread())
+                {
+                    try
+                    {
+                        Thread.sleep(periodMs);
+                    }
+                    catch(InterruptedException e)
+                    {
+                        break;
+                    }
+                    Log.d(LOG_TAG, dump());
+                }
+            }
+        });
+        dumpThread.setDaemon(true);
+        dumpThread.start();
+    }
+
+    public synchronized void stopPeriodicDump()
+    {
+        Thread thread = dumpThread;
+        dumpThread = null;
+        if(thread != null)
+        {
+            thread.interrupt();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.acaloop.acaloop;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.AudioManager;
+
+/**
+ * Remembers the round trip latency the latency test measured for each audio route,
+ * so a cold start can line overdubs up straight away instead of waiting for the test to be run again.
+ * Latency depends on more than the route, so the sample rate and buffer size are part of the key too.
+ */
+public class LatencyCache
+{
+    final static String PREFERENCES_NAME = "latency";
+
+    /**
+     * Where the audio goes, and so what the mic hears of it.
+     */
+    public enum Route
+    {
+        SPEAKER, WIRED, BLUETOOTH
+    }
+
+    private final SharedPreferences preferences;
+    private final AudioManager audioManager;
+
+    /**
+     * @param context Any context of the app
+     */
+    public LatencyCache(Context context)
+    {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        audioManager = (AudioManager)context.getSystemService(Context.AUDIO_SERVICE);
+    }
+
+    /**
+     * @return The route audio is played through right now
+     */
+    @SuppressWarnings("deprecation")
+    public Route getRoute()
+    {
+        if(audioManager.isBluetoothA2dpOn() || audioManager.isBluetoothScoOn())
+        {
+            return Route.BLUETOOTH;
+        }
+        if(audioManager.isWiredHeadsetOn())
+        {
+            return Route.WIRED;
+        }
+        return Route.SPEAKER;
+    }
+
+    /**
+     * @param sampleRate Sample rate of the recorder
+     * @param bufferSize Buffer size of the recorder, in samples
+     * @return The key of the latency for the current route with these settings
+     */
+    public String getKey(int sampleRate, int bufferSize)
+    {
+        return getRoute().name().toLowerCase() + "_" + sampleRate + "_" + bufferSize;
+    }
+
+    /**
+     * @param key A key from getKey()
+     * @return The latency stored under the key in samples, -1 if it's never been measured
+     */
+    public int load(String key)
+    {
+        return preferences.getInt(key, -1);
+    }
+
+    /**
+     * @param key A key from getKey()
+     * @param samples The measured latency in samples
+     */
+    public void store(String key, int samples)
+    {
+        preferences.edit().putInt(key, samples).apply();
+    }
+}
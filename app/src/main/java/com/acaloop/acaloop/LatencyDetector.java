@@ -0,0 +1,126 @@
+package com.acaloop.acaloop;
+
+/**
+ * Finds the round trip latency from a recording of the latency test tone.
+ * Pure computation, so it can be checked against a SimulatedAudioDevice as well as run on the device.
+ */
+public class LatencyDetector
+{
+    //Where in the recording the tone is looked for.
+    public final static int LOWER_BOUND_MS = 100;
+    public final static int UPPER_BOUND_MS = 250;
+    //How far the tone has to stand out over the frequencies either side of it where it was found, in dB.
+    //Less than that and it's noise, or a mic that couldn't hear the tone.
+    public final static double MIN_TONE_CLARITY_DB = 12;
+
+    /**
+     * Return mono PCM data of a simple sine wave with given frequency and duration
+     * @param frequency The frequency / pitch of the sine wave
+     * @param durationInFrames The duration of the sine wave
+     * @param phase Phase offset, in frames
+     * @param sampleRate The sample rate of the output
+     * @return The audio data representing the sine wave
+     */
+    public static short[] generateTone(int frequency, int durationInFrames, int phase, int sampleRate)
+    {
+        float[] tone = new float[durationInFrames];
+        double increment = ((2*Math.PI)*frequency)/(double)sampleRate;
+
+        for(int i  = 0; i < tone.length; i++)
+        {
+            //Against the frame index now that the tone is mono. Stepping by the interleaved sample index,
+            //as the stereo buffer did, would put it an octave up, where the goertzel never finds it.
+            tone[i] = (float)Math.sin(increment*(i - phase));
+        }
+
+        short[] buffer = new short[durationInFrames];
+        new OutputStage(1).toPcm16(tone, buffer, durationInFrames);
+        return buffer;
+    }
+
+    /**
+     *
+     * @param data PCM Audio data
+     * @param sampleRate The sample rate of given data
+     * @param frequency The frequency of the tone played for the latency test
+     * @param frequencyDurationInFrames The duration of the tone played for the latency test
+     * @param channelCount The number of channels the audio data represents
+     * @param framesPerPeriod Frames in one period of the tone
+     * @return The amount of samples before the tone with given frequency appears in the given data. (Approximate)
+     *         -1 if there's no clear tone.
+     */
+    public static int findLatency(short[] data, int sampleRate, int frequency, int frequencyDurationInFrames, int channelCount, int framesPerPeriod)
+    {
+        int mostLikelyOffsetInFrames = -1;
+        double powerOfOffset = 0; //arbitrary low value
+
+        double framesInOneMs = sampleRate/1000.0;
+
+        //If it hasn't found a better match for latency in 10 periods, we stop there.
+        //Prevents it from finding wrong values later and helps to terminate the algorithm faster.
+        //Need to have a sufficiently high error allowance so that we allow blips in the sound data,
+        //but need to have a low enough error allowance that the algorithm doesn't detect something later on as the tone.
+        final int ERROR_ALLOWANCE = 10;
+        for(int checkOffsetInFrames = (int)(LOWER_BOUND_MS*framesInOneMs); checkOffsetInFrames < (int)(UPPER_BOUND_MS*framesInOneMs); checkOffsetInFrames++)
+        {
+
+            if(mostLikelyOffsetInFrames != -1 && (checkOffsetInFrames - mostLikelyOffsetInFrames) > framesPerPeriod*ERROR_ALLOWANCE)
+            {
+                break;
+            }
+            //Past the end of the recording there's nothing to find.
+            if((checkOffsetInFrames + frequencyDurationInFrames)*channelCount > data.length)
+            {
+                break;
+            }
+            double power = calculateGoertzel(data, checkOffsetInFrames*channelCount, (checkOffsetInFrames + frequencyDurationInFrames)*channelCount,
+                    frequency, sampleRate, channelCount);
+
+            if(power > powerOfOffset)
+            {
+                powerOfOffset = power;
+                mostLikelyOffsetInFrames = checkOffsetInFrames;
+            }
+        }
+        if(mostLikelyOffsetInFrames < 0)
+        {
+            return -1;
+        }
+
+        int begin = mostLikelyOffsetInFrames*channelCount;
+        int end = (mostLikelyOffsetInFrames + frequencyDurationInFrames)*channelCount;
+        double background = (calculateGoertzel(data, begin, end, frequency*0.75, sampleRate, channelCount) +
+                calculateGoertzel(data, begin, end, frequency*1.25, sampleRate, channelCount))/2;
+        if(powerOfOffset - background < MIN_TONE_CLARITY_DB)
+        {
+            return -1;
+        }
+        return mostLikelyOffsetInFrames*channelCount;
+    }
+
+    /**
+     * Calculate the goertzel value
+     * @param sample The data in question
+     * @param beginInFrames The start of the section of data we should look at
+     * @param endInFrames The end of the section of data we should look at
+     * @param frequency The frequency we want the goertzel value for
+     * @param sampleRate The sample rate of the data
+     * @param channelCount The number of channels the audio data represents
+     * @return The power of the given frequency in the sample
+     */
+    public static double calculateGoertzel(short[] sample, int beginInFrames, int endInFrames, double frequency, int sampleRate, int channelCount)
+    {
+        double skn, skn1, skn2;
+        skn = skn1 = 0;
+        for (int i = beginInFrames; i < endInFrames; i++)
+        {
+            skn2 = skn1;
+            skn1 = skn;
+            skn = 2 * Math.cos(2 * Math.PI * frequency / sampleRate) * skn1 - skn2 + sample[i*channelCount];
+        }
+
+        double wnk = Math.exp(-2 * Math.PI * frequency / sampleRate);
+
+        return 20* Math.log10(Math.abs((skn - wnk * skn1)));
+    }
+}
@@ -0,0 +1,133 @@
+package com.acaloop.acaloop;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations, bucketed like an HDR histogram:
+ * each power of two is split into 16 linear sub-buckets, so any value is
+ * kept to within about 6% no matter how large it is.
+ * Recording is a few atomic increments and never allocates, so the audio threads can use it.
+ */
+public class LatencyHistogram
+{
+    private final static int SUB_BUCKET_BITS = 4;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //Covers values up to 2^40 nanoseconds, a bit over 18 minutes.
+    private final static int MAX_MAGNITUDE = 40;
+    private final static int BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2)*SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value A duration in nanoseconds
+     */
+    public void record(long value)
+    {
+        if(value < 0)
+        {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+
+        long currentMax = max.get();
+        while(value > currentMax && !max.compareAndSet(currentMax, value))
+        {
+            currentMax = max.get();
+        }
+    }
+
+    private static int bucketIndex(long value)
+    {
+        if(value < SUB_BUCKETS)
+        {
+            return (int)value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if(magnitude > MAX_MAGNITUDE)
+        {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int)(value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1)*SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return The value in the middle of the given bucket
+     */
+    private static long bucketMidpoint(int index)
+    {
+        if(index < SUB_BUCKETS)
+        {
+            return index;
+        }
+        int magnitude = index/SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        int shift = magnitude - SUB_BUCKET_BITS;
+        long lowerBound = (long)(SUB_BUCKETS + subBucket) << shift;
+        return lowerBound + ((1L << shift) >> 1);
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return The recorded value at the given percentile, to within the bucket's precision. 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long recorded = count.get();
+        if(recorded == 0)
+        {
+            return 0;
+        }
+        long wanted = Math.max(1, (long)Math.ceil(recorded*percentile/100.0));
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++)
+        {
+            seen += buckets.get(i);
+            if(seen >= wanted)
+            {
+                return Math.min(bucketMidpoint(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * @return Mean of the recorded values, 0 if nothing was recorded.
+     */
+    public long getMean()
+    {
+        long recorded = count.get();
+        return recorded == 0 ? 0 : total.get()/recorded;
+    }
+
+    /**
+     * Forget everything recorded so far.
+     * Values recorded while resetting may be partly lost, which is fine for metrics.
+     */
+    public void reset()
+    {
+        for(int i = 0; i < BUCKET_COUNT; i++)
+        {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,204 @@
+package com.acaloop.acaloop;
+
+/**
+ * A single recorded take in the loop.
+ * Audio is stored mono, and is only spread across the output channels
+ * when the player renders it, according to the layer's gain and pan.
+ */
+public class Layer
+{
+    //Speeds the stretcher is meant for, and keeps the playback length finite.
+    public final static float MIN_SPEED = 0.25f;
+    public final static float MAX_SPEED = 4f;
+    //In semitones. The stretcher does pitch times the work of an unshifted layer, so this caps the render cost at twice that.
+    public final static float MAX_PITCH_SHIFT = 12f;
+
+    private final SampleBuffer samples;
+
+    private volatile float gain;
+    private volatile float pan;
+    private volatile float speed = 1;
+    private volatile float pitch = 1;
+    //Only made once the layer is actually stretched or shifted.
+    private volatile TimeStretcher stretcher;
+    //Played instead of the first frames of the loop, to smooth over the wrap. See LoopSeam.
+    private volatile short[] seam;
+
+    /**
+     * @param samples Mono PCM data of this layer, owned by the layer from now on
+     * @param gain The gain applied to the layer when it is mixed
+     */
+    public Layer(SampleBuffer samples, float gain)
+    {
+        this.samples = samples;
+        this.gain = gain;
+        this.pan = 0;
+    }
+
+    /**
+     * A layer sharing the audio of another, with its settings as they are now.
+     * Changing either's settings doesn't change the other's. The audio is still the other's, it's never released through this.
+     */
+    public Layer snapshot()
+    {
+        Layer copy = new Layer(samples, gain);
+        copy.pan = pan;
+        copy.speed = speed;
+        copy.pitch = pitch;
+        copy.seam = seam;
+        if(stretcher != null)
+        {
+            copy.stretcher = new TimeStretcher();
+        }
+        return copy;
+    }
+
+    /**
+     * @return The mono PCM data of this layer
+     */
+    public SampleBuffer getSamples()
+    {
+        return samples;
+    }
+
+    /**
+     * Give the layer's audio back to its pool. Only once the layer is no longer played.
+     */
+    public void release()
+    {
+        samples.release();
+    }
+
+    /**
+     * @return The length of the layer in frames
+     */
+    public int getLengthInFrames()
+    {
+        return samples.getLength();
+    }
+
+    /**
+     * @return The length of the layer in frames once its speed is applied
+     */
+    public int getPlaybackLengthInFrames()
+    {
+        return (int)(samples.getLength()/speed);
+    }
+
+    /**
+     * @return The block played over the start of the layer in place of its samples, or null if there's none
+     */
+    public short[] getSeam()
+    {
+        return seam;
+    }
+
+    /**
+     * @param seam Block to play over the start of the layer in place of its samples, null for none
+     */
+    public void setSeam(short[] seam)
+    {
+        this.seam = seam;
+    }
+
+    public float getGain()
+    {
+        return gain;
+    }
+
+    public void setGain(float gain)
+    {
+        this.gain = gain;
+    }
+
+    public float getPan()
+    {
+        return pan;
+    }
+
+    /**
+     * @param pan -1 is hard left, 0 is center and 1 is hard right.
+     */
+    public void setPan(float pan)
+    {
+        this.pan = Math.max(-1f, Math.min(1f, pan));
+    }
+
+    public float getSpeed()
+    {
+        return speed;
+    }
+
+    /**
+     * Retime the layer without changing its pitch.
+     * Not to be called from the render thread, the stretcher is allocated here.
+     * @param speed Playback speed, 2 plays twice as fast. Clamped to [MIN_SPEED, MAX_SPEED].
+     */
+    public void setSpeed(float speed)
+    {
+        ensureStretcher();
+        //Also catches NaN, which compares false to everything.
+        this.speed = speed >= MIN_SPEED ? Math.min(MAX_SPEED, speed) : MIN_SPEED;
+    }
+
+    /**
+     * @return The pitch ratio, 2 is an octave up
+     */
+    public float getPitch()
+    {
+        return pitch;
+    }
+
+    /**
+     * Retune the layer without changing its tempo.
+     * Not to be called from the render thread, the stretcher is allocated here.
+     * @param semitones Semitones to shift by, negative to shift down. Clamped to MAX_PITCH_SHIFT either way.
+     */
+    public void setPitchShift(float semitones)
+    {
+        ensureStretcher();
+        semitones = semitones >= -MAX_PITCH_SHIFT ? Math.min(MAX_PITCH_SHIFT, semitones) : -MAX_PITCH_SHIFT;
+        this.pitch = (float)Math.pow(2, semitones/12.0);
+    }
+
+    private void ensureStretcher()
+    {
+        if(stretcher == null)
+        {
+            stretcher = new TimeStretcher();
+        }
+    }
+
+    /**
+     * @return True iff the layer has to go through its stretcher when rendered
+     */
+    public boolean isStretched()
+    {
+        return stretcher != null && (speed != 1 || pitch != 1);
+    }
+
+    public TimeStretcher getStretcher()
+    {
+        return stretcher;
+    }
+
+    /**
+     * Gain of the left output channel, including the pan.
+     * Panning only ever attenuates the opposite side so that a centered layer
+     * sounds exactly like the old duplicated stereo capture.
+     */
+    public float getLeftGain()
+    {
+        float p = pan;
+        return gain * (p <= 0 ? 1 : 1 - p);
+    }
+
+    /**
+     * Gain of the right output channel, including the pan.
+     */
+    public float getRightGain()
+    {
+        float p = pan;
+        return gain * (p >= 0 ? 1 : 1 + p);
+    }
+}
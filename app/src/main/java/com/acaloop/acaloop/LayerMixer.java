@@ -0,0 +1,122 @@
+package com.acaloop.acaloop;
+
+import java.util.List;
+
+/**
+ * Mixes mono layers into an interleaved stereo float block, panning each as it goes.
+ * Holds its own scratch, so each thread that mixes needs its own mixer.
+ */
+public class LayerMixer
+{
+    //Mono scratch for layers that have to be stretched before they're mixed.
+    private final float[] voiceBlock;
+
+    /**
+     * @param maxFrames The most frames that will be mixed in one call
+     */
+    public LayerMixer(int maxFrames)
+    {
+        voiceBlock = new float[maxFrames];
+    }
+
+    /**
+     * Mix every layer into an interleaved stereo float block.
+     * @param layers The layers to mix
+     * @param out Interleaved stereo output, in the range [-1, 1]
+     * @param outFrame The frame of out to start writing at
+     * @param startFrame The position in the loop of the first frame to render
+     * @param frames Number of frames to render
+     */
+    public void mix(List<Layer> layers, float[] out, int outFrame, int startFrame, int frames)
+    {
+        for(int i = outFrame*2; i < (outFrame + frames)*2; i++)
+        {
+            out[i] = 0;
+        }
+
+        for(Layer layer : layers)
+        {
+            if(layer.isStretched())
+            {
+                mixStretched(layer, out, outFrame, startFrame, frames);
+                continue;
+            }
+
+            mixPlain(layer, out, outFrame, startFrame, frames);
+        }
+    }
+
+    /**
+     * Add a layer that isn't stretched into the interleaved stereo block, straight from its samples.
+     * Needs no scratch, so any thread can call it.
+     */
+    static void mixPlain(Layer layer, float[] out, int outFrame, int startFrame, int frames)
+    {
+        SampleBuffer samples = layer.getSamples();
+        short[] seam = layer.getSeam();
+        //Fold the short to float scaling into the gains.
+        float leftGain = layer.getLeftGain()/Short.MAX_VALUE;
+        float rightGain = layer.getRightGain()/Short.MAX_VALUE;
+        int end = Math.min(frames, samples.getLength() - startFrame);
+        int done = 0;
+        if(seam != null && startFrame < seam.length)
+        {
+            //The top of the loop comes from the seam, which the end of the loop runs straight into.
+            done = Math.max(0, Math.min(end, seam.length - startFrame));
+            mixMono(seam, startFrame, out, outFrame, done, leftGain, rightGain);
+        }
+        mixMono(samples, startFrame + done, out, outFrame + done, end - done, leftGain, rightGain);
+    }
+
+    /**
+     * Add mono shorts into the interleaved stereo block.
+     */
+    private static void mixMono(SampleBuffer source, int sourceFrame, float[] out, int outFrame, int frames, float leftGain, float rightGain)
+    {
+        for(int i = 0; i < frames; i++)
+        {
+            short sample = source.get(sourceFrame + i);
+            out[2*(outFrame + i)] += sample*leftGain;
+            out[2*(outFrame + i) + 1] += sample*rightGain;
+        }
+    }
+
+    /**
+     * Add mono shorts into the interleaved stereo block.
+     */
+    private static void mixMono(short[] source, int sourceFrame, float[] out, int outFrame, int frames, float leftGain, float rightGain)
+    {
+        for(int i = 0; i < frames; i++)
+        {
+            short sample = source[sourceFrame + i];
+            out[2*(outFrame + i)] += sample*leftGain;
+            out[2*(outFrame + i) + 1] += sample*rightGain;
+        }
+    }
+
+    /**
+     * Mix a layer that's retimed or retuned, through its stretcher.
+     */
+    private void mixStretched(Layer layer, float[] out, int outFrame, int startFrame, int frames)
+    {
+        int end = Math.min(frames, layer.getPlaybackLengthInFrames() - startFrame);
+        if(end <= 0)
+            return;
+
+        layer.getStretcher().render(layer.getSamples(), layer.getSpeed(), layer.getPitch(), startFrame, voiceBlock, end);
+        mixVoice(voiceBlock, 0, out, outFrame, end, layer.getLeftGain(), layer.getRightGain());
+    }
+
+    /**
+     * Add a mono float voice, e.g. a stretched layer, into the interleaved stereo block.
+     */
+    static void mixVoice(float[] voice, int voiceFrame, float[] out, int outFrame, int frames, float leftGain, float rightGain)
+    {
+        for(int i = 0; i < frames; i++)
+        {
+            float sample = voice[voiceFrame + i];
+            out[2*(outFrame + i)] += sample*leftGain;
+            out[2*(outFrame + i) + 1] += sample*rightGain;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.acaloop.acaloop;
+
+/**
+ * Picks the points a take is looped between, and makes the seam where the loop wraps round.
+ *
+ * The start is snapped to a zero crossing, and the end to where what follows it best matches
+ * what follows the start. The audio that carried on past the end is then crossfaded into the start
+ * of the loop, and kept as a small seam block the mixer plays in place of the loop's first frames,
+ * so the wrap needs no work at all while playing. All data here is mono.
+ */
+public class LoopSeam
+{
+    //10ms at 44.1kHz, long enough to cover whatever mismatch the end has left.
+    public final static int SEAM_FRAMES = 441;
+    //How far the start may move to find a zero crossing, 2ms at 44.1kHz.
+    public final static int SNAP_RADIUS = 88;
+    //How far the end may move to find a better match, 5ms at 44.1kHz.
+    public final static int MATCH_RADIUS = 220;
+    //How much audio is compared when matching the end to the start.
+    public final static int MATCH_WINDOW = 256;
+
+    /**
+     * @param data Audio
+     * @param index Where we'd like to cut
+     * @param radius How far the cut may move either way
+     * @return The closest index within the radius where the audio crosses zero going up, or index if there's none
+     */
+    public static int snapToZeroCrossing(SampleBuffer data, int index, int radius)
+    {
+        for(int distance = 0; distance <= radius; distance++)
+        {
+            if(isUpwardCrossing(data, index - distance))
+            {
+                return index - distance;
+            }
+            if(isUpwardCrossing(data, index + distance))
+            {
+                return index + distance;
+            }
+        }
+        return index;
+    }
+
+    private static boolean isUpwardCrossing(SampleBuffer data, int index)
+    {
+        return index > 0 && index < data.getLength() && data.get(index - 1) < 0 && data.get(index) >= 0;
+    }
+
+    /**
+     * Move the end of the loop to where the audio following it sounds most like the audio following the start,
+     * so the wrap from one to the other is as close to continuous as it can be.
+     * @param data Audio
+     * @param start First frame of the loop
+     * @param end Frame after the last of the loop, as we'd like it
+     * @param limit How much of data holds audio, the end can't be matched without audio after it
+     * @param radius How far the end may move either way
+     * @return The best end within the radius, or end itself if there's nothing to match against
+     */
+    public static int findBestEnd(SampleBuffer data, int start, int end, int limit, int radius)
+    {
+        int window = Math.min(MATCH_WINDOW, limit - start);
+        int first = Math.max(start + window, end - radius);
+        int last = Math.min(limit - window, end + radius);
+        if(window <= 0 || first > last)
+        {
+            return end;
+        }
+
+        double startEnergy = 0;
+        for(int i = 0; i < window; i++)
+        {
+            startEnergy += data.get(start + i)*data.get(start + i);
+        }
+
+        int best = end;
+        double bestScore = -2;
+        for(int candidate = first; candidate <= last; candidate++)
+        {
+            double cross = 0;
+            double energy = 0;
+            for(int i = 0; i < window; i++)
+            {
+                short sample = data.get(candidate + i);
+                cross += sample*data.get(start + i);
+                energy += sample*sample;
+            }
+            double norm = Math.sqrt(startEnergy*energy);
+            //Silence matches silence.
+            double score = norm == 0 ? (startEnergy == energy ? 1 : 0) : cross/norm;
+            //Equal scores go to the candidate closest to where we were asked to cut.
+            if(score > bestScore || (score == bestScore && Math.abs(candidate - end) < Math.abs(best - end)))
+            {
+                bestScore = score;
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Crossfade the audio that followed the end of the loop into the start of the loop.
+     * Played in place of the loop's first frames, the loop then carries straight on from its last frame.
+     * @param data Audio
+     * @param start First frame of the loop
+     * @param end Frame after the last of the loop
+     * @param limit How much of data holds audio, silence is assumed past it
+     * @param seamFrames Length of the crossfade
+     * @return The seam block, to be played over the first frames of the loop
+     */
+    public static short[] bakeSeam(SampleBuffer data, int start, int end, int limit, int seamFrames)
+    {
+        short[] seam = new short[Math.max(0, Math.min(seamFrames, end - start))];
+        for(int i = 0; i < seam.length; i++)
+        {
+            //Linear rather than equal power: the two sides have been matched, so they mostly add up in phase.
+            float t = i/(float)seam.length;
+            float head = data.get(start + i);
+            float tail = end + i < limit ? data.get(end + i) : 0;
+            seam[i] = (short)Math.round(head*t + tail*(1 - t));
+        }
+        return seam;
+    }
+}
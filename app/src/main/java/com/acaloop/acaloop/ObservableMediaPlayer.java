@@ -1,15 +1,22 @@
 package com.acaloop.acaloop;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
+import android.os.Build;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.InvalidPropertiesFormatException;
+import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Media Player that is observed by the play button, and is notified by the
@@ -19,23 +26,65 @@ public class ObservableMediaPlayer extends Observable implements Observer
 {
     final static String LOG_TAG = ObservableMediaPlayer.class.getSimpleName();
 
-    private AudioTrack track;
+    private final AudioOutput output;
     private AudioManager audioManager;
     private AudioManager.OnAudioFocusChangeListener afChangeListener;
 
-    private short[] playbackData = null;
+    //Each take is kept as its own mono layer and only mixed down to stereo when rendered.
+    //Layers belong to scenes, a song can switch between several loops.
+    //The scenes, the current and queued scene and the layers in them are only changed under transportLock.
+    //The playback thread reads them without it, the lists are copy-on-write.
+    private final List<Scene> scenes = new CopyOnWriteArrayList<>();
+    private volatile Scene currentScene;
+    //Bounces running, and the layers deleted meanwhile. Their audio is only released once no bounce can be reading it.
+    //Both only touched under transportLock.
+    private int exportsRunning;
+    private final List<Layer> releasedDuringExport = new ArrayList<>();
+    //Scene to switch to at the next loop boundary, once it's been prepared.
+    private volatile Scene queuedScene;
+    private Scene sceneBeforeLatencyTest;
+    //Only touched by the playback thread.
+    private long sceneSwitchFrame = -1;
+    private boolean premixPending;
+    private final DirectBufferPool sceneFilePool = new DirectBufferPool(SCENE_FILE_BUFFER_BYTES, 2);
+    //Every take, layer and capture is kept in slabs from here, so none of it goes through the java heap.
+    private final DirectBufferPool slabPool = new DirectBufferPool(SLAB_BYTES, INITIAL_SLABS);
+    //The mix is done in float, and only converted for the track by the output stage.
+    private final float[] mixBlock;
+    private final LayerMixer mixer;
+    private final short[] renderBlock;
+    private final OutputStage outputStage;
+
+    private final EngineMetrics metrics = new EngineMetrics();
+    //Keeps every layer on disk as it's committed, null for none.
+    private volatile SessionJournal journal;
+
+    //Clock of the loop, advanced by the playback thread only.
+    private final Transport transport = new Transport();
+    private final Object transportLock = new Object();
+    private volatile Thread playbackThread;
+    //False while the latency test plays its tone once.
+    private boolean loopPlayback = true;
 //    private boolean canPlay = false;
 
 //    private PresetReverb presetReverb;
 
     public final static int FRAMES_PER_PERIOD = 50;
+    public final static int RENDER_BLOCK_FRAMES = 512;
+    //How much of a queued scene is mixed ahead of the switch.
+    public final static int PREMIX_FRAMES = 4*RENDER_BLOCK_FRAMES;
+    private final static int SCENE_FILE_BUFFER_BYTES = 64*1024;
+    //32768 samples, about 0.75s at 44.1kHz.
+    public final static int SLAB_BYTES = 64*1024;
+    //Enough for a first take's capture and a good few layers before the pool has to grow.
+    private final static int INITIAL_SLABS = 64;
 
     /**
      * @param recordActivity The RecordActivity that holds this ObservableMediaPlayer
      */
     public ObservableMediaPlayer(RecordActivity recordActivity) throws InvalidPropertiesFormatException
     {
-        super();
+        this(openTrack());
 
         audioManager = (AudioManager)recordActivity.getSystemService(Context.AUDIO_SERVICE);
 
@@ -51,7 +100,47 @@ public class ObservableMediaPlayer extends Observable implements Observer
             }
         };
 
-        initPlayer();
+        //Request "permanent" audio focus
+        //Meaning we want to play audio for the foreseeable future.
+        int result = audioManager.requestAudioFocus(afChangeListener,
+                RecordActivity.STREAM,
+                AudioManager.AUDIOFOCUS_GAIN);
+
+        if(result != AudioManager.AUDIOFOCUS_REQUEST_GRANTED)
+        {
+            Log.e(LOG_TAG, "AudioFocus request not granted. Result: " + result);
+        }
+
+        //TODO: Don't allow sleeping while we're playing. (wake lock)
+//        short[] metronomeTone = generateSineWave();
+    }
+
+    /**
+     * A player for any output, e.g. a SimulatedAudioDevice. Doesn't ask for audio focus.
+     * @param output Where the player sends its audio
+     */
+    ObservableMediaPlayer(AudioOutput output)
+    {
+        super();
+
+        currentScene = new Scene();
+        scenes.add(currentScene);
+
+        this.output = output;
+        mixBlock = new float[RENDER_BLOCK_FRAMES*output.getChannelCount()];
+        mixer = new LayerMixer(RENDER_BLOCK_FRAMES);
+        renderBlock = new short[RENDER_BLOCK_FRAMES*output.getChannelCount()];
+        outputStage = new OutputStage(output.getChannelCount());
+        metrics.setSampleRate(output.getSampleRate());
+        metrics.setSlabPool(slabPool);
+
+        //TODO: Put reverb back in with settings for different reverbs
+//        presetReverb = new PresetReverb(0,track.getAudioSessionId());
+//        presetReverb.setPreset(PresetReverb.PRESET_LARGEHALL);
+//        if(presetReverb.setEnabled(true) != PresetReverb.SUCCESS)
+//        {
+//            Log.e(LOG_TAG, "preset reverb not enabled");
+//        }
     }
 
     /**
@@ -59,47 +148,72 @@ public class ObservableMediaPlayer extends Observable implements Observer
      */
     public boolean isPlaying()
     {
-        return track != null && track.getPlayState() == AudioTrack.PLAYSTATE_PLAYING;
+        return !transport.isStopped();
     }
 
-    private void initPlayer() throws InvalidPropertiesFormatException
+    /**
+     * @return The device's output, as a float track where it can take one.
+     */
+    private static AudioOutput openTrack() throws InvalidPropertiesFormatException
     {
         int sampleRateInHz = RecordActivity.SAMPLE_RATE_HZ;
         int channelConfig = AudioFormat.CHANNEL_OUT_STEREO;
-        int audioFormat = RecordActivity.AUDIO_FORMAT;
-        int minBufferSize = AudioTrack.getMinBufferSize(sampleRateInHz,channelConfig,audioFormat);
 
-        track = new AudioTrack(AudioManager.STREAM_MUSIC,
-                sampleRateInHz,channelConfig,
-                audioFormat,minBufferSize,
-                AudioTrack.MODE_STREAM);
+        //Hand the sink float directly where it can take it, no dither needed then.
+        AudioTrack track = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? createFloatTrack(sampleRateInHz, channelConfig) : null;
+        boolean floatOutput = track != null;
+
+        if(!floatOutput)
+        {
+            int audioFormat = RecordActivity.AUDIO_FORMAT;
+            int minBufferSize = AudioTrack.getMinBufferSize(sampleRateInHz,channelConfig,audioFormat);
+
+            track = new AudioTrack(AudioManager.STREAM_MUSIC,
+                    sampleRateInHz,channelConfig,
+                    audioFormat,minBufferSize,
+                    AudioTrack.MODE_STREAM);
+        }
 
         if(track.getState() != AudioTrack.STATE_INITIALIZED)
         {
             throw new InvalidPropertiesFormatException("Couldn't initialize AudioTrack. Track in state: " + track.getState());
         }
+        Log.d(LOG_TAG, "Float output: " + floatOutput);
+        return new AndroidAudioOutput(track, floatOutput);
+    }
 
-        //TODO: Put reverb back in with settings for different reverbs
-//        presetReverb = new PresetReverb(0,track.getAudioSessionId());
-//        presetReverb.setPreset(PresetReverb.PRESET_LARGEHALL);
-//        if(presetReverb.setEnabled(true) != PresetReverb.SUCCESS)
-//        {
-//            Log.e(LOG_TAG, "preset reverb not enabled");
-//        }
-
-        //Request "permanent" audio focus
-        //Meaning we want to play audio for the foreseeable future.
-        int result = audioManager.requestAudioFocus(afChangeListener,
-                RecordActivity.STREAM,
-                AudioManager.AUDIOFOCUS_GAIN);
+    /**
+     * @return A float AudioTrack, or null if the device won't give us one.
+     */
+    @TargetApi(21)
+    private static AudioTrack createFloatTrack(int sampleRateInHz, int channelConfig)
+    {
+        int audioFormat = AudioFormat.ENCODING_PCM_FLOAT;
+        int minBufferSize = AudioTrack.getMinBufferSize(sampleRateInHz,channelConfig,audioFormat);
+        if(minBufferSize <= 0)
+        {
+            return null;
+        }
 
-        if(result != AudioManager.AUDIOFOCUS_REQUEST_GRANTED)
+        AudioTrack floatTrack;
+        try
         {
-            Log.e(LOG_TAG, "AudioFocus request not granted. Result: " + result);
+            floatTrack = new AudioTrack(AudioManager.STREAM_MUSIC,
+                    sampleRateInHz,channelConfig,
+                    audioFormat,minBufferSize,
+                    AudioTrack.MODE_STREAM);
+        }
+        catch(IllegalArgumentException e)
+        {
+            return null;
         }
 
-        //TODO: Don't allow sleeping while we're playing. (wake lock)
-//        short[] metronomeTone = generateSineWave();
+        if(floatTrack.getState() != AudioTrack.STATE_INITIALIZED)
+        {
+            floatTrack.release();
+            return null;
+        }
+        return floatTrack;
     }
 
     /**
@@ -108,9 +222,17 @@ public class ObservableMediaPlayer extends Observable implements Observer
     public void setupLatencyTest()
     {
         stopPlayback();
+        //The tone is played exactly once, no looping and no fades.
+        loopPlayback = false;
         int latencyFrequency = getLatencyToneFrequency();
         //Divide by 8 because this gives the phase of the sine wave that the goertzel algorithm recognizes the best given a certain tone duration.
-        playbackData = generateSineWave(latencyFrequency, getLatencyToneDurationInFrames(), getFramesPerPeriod(latencyFrequency)/8);
+        //The tone gets a scene of its own, so the loop we had survives the test.
+        Scene testScene = new Scene();
+        short[] tone = LatencyDetector.generateTone(latencyFrequency, getLatencyToneDurationInFrames(),
+                getFramesPerPeriod(latencyFrequency)/8, getSampleRate());
+        testScene.getLayers().add(new Layer(SampleBuffer.copyOf(tone, slabPool), 1));
+        sceneBeforeLatencyTest = currentScene;
+        currentScene = testScene;
         //TODO: This could be an option later on for the headphone-less in general.
 //        audioManager.setMode(AudioManager.MODE_IN_CALL);
 //        audioManager.setSpeakerphoneOn(true);
@@ -123,54 +245,69 @@ public class ObservableMediaPlayer extends Observable implements Observer
     {
 //        audioManager.setSpeakerphoneOn(false);
 //        audioManager.setMode(AudioManager.MODE_NORMAL);
-        //Delete the sine wave data
-        deletePlaybackData();
+        //Delete the sine wave data, back to the scene we were on.
+        Scene testScene = currentScene;
+        currentScene = sceneBeforeLatencyTest;
+        releaseLayers(testScene);
+        sceneBeforeLatencyTest = null;
+        loopPlayback = true;
     }
 
     /**
-     * Return PCM data of a simple sine wave with given frequency and duration
-     * @param frequency The frequency / pitch of the sine wave
-     * @param durationInFrames The duration of the sine wave
-     * @return The audio data representing the sine wave
+     * Starts playing the loop from its top
      */
-    private short[] generateSineWave(int frequency, int durationInFrames, int phase)
+    public void startPlayback()
     {
-        int durationInSamples = durationInFrames*track.getChannelCount();
-        short[] buffer = new short[durationInSamples];
-        double increment = ((2*Math.PI)*frequency)/(double)track.getSampleRate();
-
-        for(int i  = 0; i < buffer.length; i+=track.getChannelCount())
+        Log.d(LOG_TAG, "Start Playback");
+        Thread finishing;
+        synchronized(transportLock)
+        {
+            finishing = isPlaying() ? null : playbackThread;
+        }
+        //The transport has stopped, but the last playback thread may still be writing its final block.
+        //It needs the lock to let go of the output, so it's waited for outside of it.
+        if(finishing != null && finishing != Thread.currentThread())
         {
-            for(int j = 0; j < track.getChannelCount(); j++)
+            try
+            {
+                finishing.join();
+            }
+            catch(InterruptedException e)
             {
-                //Use byte max value *8 as the size of the amplitude because clipping occurs when using the full possible short.
-                buffer[i+j] = (short) (Math.sin(increment*(i - phase)) * Short.MAX_VALUE);
+                Thread.currentThread().interrupt();
+                return;
             }
         }
-        return buffer;
-    }
 
-    /**
-     * Starts playing the track at the playback file
-     */
-    public void startPlayback()
-    {
-        Log.d(LOG_TAG, "Start Playback");
-        //If already playing, don't need to play
-        //If we don't have any data to play, don't attempt to play.
-        if(isPlaying() || playbackData == null)
-            return;
+        synchronized(transportLock)
+        {
+            //If already playing, don't need to play
+            //If we don't have any data to play, don't attempt to play. A loop of no frames would never finish a block.
+            //A playback thread that's still around owns the output, a second one must never write to it.
+            if(isPlaying() || playbackThread != null || getLoopLengthInFrames() <= 0)
+                return;
 
-        track.play();
+            sceneSwitchFrame = -1;
+            premixPending = false;
 
-        new Thread( new Runnable()
-        {
-            @Override
-            public void run()
+            //Started here rather than on the playback thread, so anyone arming a recording right after sees us playing.
+            Scene scene = currentScene;
+            transport.setGrid(scene.getBarsPerLoop(), scene.getBeatsPerBar());
+            transport.start(getLoopLengthInFrames(), loopPlayback);
+            //Drop whatever the last stop left in the track, this also resets the playback head.
+            output.flush();
+            output.play();
+
+            playbackThread = new Thread( new Runnable()
             {
-                writeAudioFromPlaybackData();
-            }
-        }).start();
+                @Override
+                public void run()
+                {
+                    writeAudioFromPlaybackData();
+                }
+            });
+            playbackThread.start();
+        }
         //Allow playback to start as soon as possible.
         Thread.yield();
 
@@ -206,25 +343,207 @@ public class ObservableMediaPlayer extends Observable implements Observer
     {
         Log.d(LOG_TAG, "Starting Playback: " + System.currentTimeMillis());
 //        waitForRecordingToStart();
-        track.write(playbackData, 0, playbackData.length);
-        //If we completed playback without "stopping" it, set to stopped.
-        stopPlayback();
+        outputStage.reset();
+        long framesWritten = 0;
+        while(!transport.isStopped())
+        {
+            long renderStart = System.nanoTime();
+            transport.beginBlock();
+            long position = transport.getPosition();
+            scheduleSceneSwitch(position);
+
+            //Switch scenes exactly at the boundary, even if it falls in the middle of the block.
+            int switchOffset = sceneSwitchFrame >= 0 && sceneSwitchFrame < position + RENDER_BLOCK_FRAMES ?
+                    (int)(sceneSwitchFrame - position) : RENDER_BLOCK_FRAMES;
+            renderLoop(mixBlock, 0, position, switchOffset);
+            if(switchOffset < RENDER_BLOCK_FRAMES)
+            {
+                switchScene();
+                renderLoop(mixBlock, switchOffset, position + switchOffset, RENDER_BLOCK_FRAMES - switchOffset);
+            }
+            //Fades and stops are applied sample accurately, the block may end early.
+            int frames = transport.endBlock(mixBlock, RENDER_BLOCK_FRAMES);
+            if(frames == 0)
+            {
+                break;
+            }
+            convertBlock(frames);
+            metrics.recordRenderBlock(System.nanoTime() - renderStart, frames);
+
+            //If the track has already played everything we gave it, it ran dry before this block arrived.
+            if(framesWritten > 0 && output.getPlaybackHeadPosition() >= framesWritten)
+            {
+                metrics.recordUnderrun();
+            }
+            if(writeBlock(frames) < frames*2)
+            {
+                metrics.recordWriteStarvation();
+            }
+            framesWritten += frames;
+        }
+
+        synchronized(transportLock)
+        {
+            //No flush, let the track play out the fade we just gave it.
+            output.stop();
+            //An empty scene can't play, playback stopped at the boundary to let us go there.
+            Scene next = queuedScene;
+            if(next != null && next.isEmpty())
+            {
+                currentScene = next;
+                queuedScene = null;
+            }
+            //Only now can playback be started again.
+            playbackThread = null;
+        }
+        setChanged();
+        notifyObservers();
+    }
+
+    /**
+     * Render the current scene's loop starting at some point of the timeline, wrapping around the end of the loop.
+     * @param out Interleaved stereo output
+     * @param outFrame The frame of out to start writing at
+     * @param timelineFrame The transport position of the first frame
+     * @param frames Number of frames to render
+     */
+    private void renderLoop(float[] out, int outFrame, long timelineFrame, int frames)
+    {
+        Scene scene = currentScene;
+        int loopFrame = transport.toLoopFrame(timelineFrame);
+        int loopLengthInFrames = transport.getLoopLengthInFrames();
+        int end = outFrame + frames;
+        if(loopLengthInFrames <= 0)
+        {
+            //Nothing to wrap round, the loop would never advance. Play silence and let playback end.
+            Arrays.fill(out, outFrame*2, end*2, 0);
+            transport.requestStopNow();
+            return;
+        }
+        while(outFrame < end)
+        {
+            int chunk = Math.min(end - outFrame, loopLengthInFrames - loopFrame);
+            int premixed = 0;
+            if(premixPending)
+            {
+                //Right after a switch, the start of the loop has already been mixed.
+                premixed = scene.readPremix(out, outFrame, loopFrame, chunk);
+                premixPending = premixed == chunk;
+            }
+            mixer.mix(scene.getLayers(), out, outFrame + premixed, loopFrame + premixed, chunk - premixed);
+            outFrame += chunk;
+            loopFrame = 0;
+        }
     }
 
     /**
-     * Stops playing the audio stream
-     * Releases it appropriately, and updates buttons.
+     * Once a queued scene is ready, decide on the loop boundary we switch to it at.
+     * An empty scene can't be played, so playback stops at that boundary instead.
+     * @param position The transport position at the start of the block
+     */
+    private void scheduleSceneSwitch(long position)
+    {
+        Scene next = queuedScene;
+        if(next == null || sceneSwitchFrame >= 0 || !next.isPrepared())
+            return;
+
+        long boundary = transport.nextBoundary(position, Transport.Quantize.LOOP);
+        if(next.isEmpty())
+        {
+            transport.stopAt(boundary);
+        }
+        else
+        {
+            sceneSwitchFrame = boundary;
+        }
+    }
+
+    private void switchScene()
+    {
+        Scene next = queuedScene;
+        if(next == null)
+        {
+            //Deleted while we were waiting for the boundary.
+            sceneSwitchFrame = -1;
+            return;
+        }
+        currentScene = next;
+        queuedScene = null;
+        transport.setGrid(next.getBarsPerLoop(), next.getBeatsPerBar());
+        transport.switchLoop(sceneSwitchFrame, next.getLoopLengthInFrames());
+        sceneSwitchFrame = -1;
+        premixPending = true;
+    }
+
+    /**
+     * Put a rendered float block through the output stage, ready for the output.
+     * @param frames Number of frames in the mix block
+     */
+    private void convertBlock(int frames)
+    {
+        if(output.isFloat())
+        {
+            outputStage.toPcmFloat(mixBlock, mixBlock, frames);
+        }
+        else
+        {
+            outputStage.toPcm16(mixBlock, renderBlock, frames);
+        }
+    }
+
+    /**
+     * Send a converted block to the output.
+     * @param frames Number of frames in the block
+     * @return The number of samples the output took
+     */
+    private int writeBlock(int frames)
+    {
+        if(output.isFloat())
+        {
+            return output.write(mixBlock, 0, frames*2);
+        }
+        return output.write(renderBlock, 0, frames*2);
+    }
+
+    /**
+     * Stops playing the audio stream right away, after a short fade.
+     * Waits for the playback thread to finish, which updates buttons.
      */
     public void stopPlayback()
+    {
+        Thread thread;
+        synchronized(transportLock)
+        {
+            thread = playbackThread;
+            if(thread == null)
+                return;
+            transport.requestStopNow();
+        }
+
+        if(thread != Thread.currentThread())
+        {
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        //abandon audio focus since we're done with it.
+        //audioManager.abandonAudioFocus(afChangeListener);
+    }
+
+    /**
+     * Stop playing at the next boundary of the transport's quantization.
+     * Doesn't wait, observers are notified once playback has actually stopped.
+     */
+    public void stopPlaybackQuantized()
     {
         if(isPlaying())
         {
-            track.flush();
-            track.stop();
-            setChanged();
-            notifyObservers();
-            //abandon audio focus since we're done with it.
-            //audioManager.abandonAudioFocus(afChangeListener);
+            transport.requestStop();
         }
     }
 
@@ -249,9 +568,287 @@ public class ObservableMediaPlayer extends Observable implements Observer
 ////        }
 //    }
 
+    /**
+     * Delete every scene, leaving a single empty one.
+     */
     public void deletePlaybackData()
     {
-        playbackData = null;
+        Scene scene = new Scene();
+        SessionJournal sessionJournal = journal;
+        if(sessionJournal != null)
+        {
+            sessionJournal.clear();
+        }
+        synchronized(transportLock)
+        {
+            queuedScene = null;
+            currentScene = scene;
+            for(Scene deleted : scenes)
+            {
+                releaseLayers(deleted);
+            }
+            scenes.clear();
+            scenes.add(scene);
+        }
+    }
+
+    /**
+     * Give the audio of every layer of a scene that's no longer played back to the slab pool.
+     */
+    private void releaseLayers(Scene scene)
+    {
+        for(Layer layer : scene.getLayers())
+        {
+            if(exportsRunning > 0)
+            {
+                releasedDuringExport.add(layer);
+            }
+            else
+            {
+                layer.release();
+            }
+        }
+        scene.getLayers().clear();
+    }
+
+    /**
+     * Replace every scene with those recovered from the journal, and prepare the first of them.
+     * Blocking, call from a background thread while nothing is playing.
+     * @param recovered Scenes from SessionJournal.recover(), does nothing if there are none
+     */
+    public void restoreScenes(List<Scene> recovered)
+    {
+        if(recovered.isEmpty())
+            return;
+
+        synchronized(transportLock)
+        {
+            for(Scene deleted : scenes)
+            {
+                releaseLayers(deleted);
+            }
+            scenes.clear();
+            scenes.addAll(recovered);
+            queueScene(recovered.get(0));
+        }
+    }
+
+    /**
+     * @return A renderer for offline work, spread over every core where fork/join is available (API 21)
+     */
+    public static OfflineRenderer createOfflineRenderer()
+    {
+        boolean canFork = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+        return new OfflineRenderer(canFork ? Runtime.getRuntime().availableProcessors() : 1);
+    }
+
+    /**
+     * Bounce one loop of a scene to a stereo WAV file.
+     * Blocking, call from a background thread. Playback and recording carry on meanwhile,
+     * the file is the scene as it was when the bounce started.
+     * @param scene The scene, its layers are read from disk first if they haven't been yet
+     * @param destination The file to write
+     * @throws IOException If reading the layers or writing the file fails
+     */
+    public void exportScene(Scene scene, File destination) throws IOException
+    {
+        if(!scene.isPrepared())
+        {
+            scene.prepare(sceneFilePool, slabPool, PREMIX_FRAMES);
+        }
+        //The layers as they are now: takes added, gains halved or everything deleted meanwhile don't show up in the file.
+        List<Layer> snapshot = new ArrayList<>();
+        int frames;
+        synchronized(transportLock)
+        {
+            for(Layer layer : scene.getLayers())
+            {
+                snapshot.add(layer.snapshot());
+            }
+            frames = scene.getLoopLengthInFrames();
+            exportsRunning++;
+        }
+        OfflineRenderer renderer = createOfflineRenderer();
+        try
+        {
+            renderer.export(snapshot, frames, destination, getSampleRate(), sceneFilePool);
+        }
+        finally
+        {
+            renderer.shutdown();
+            synchronized(transportLock)
+            {
+                exportsRunning--;
+                if(exportsRunning == 0)
+                {
+                    for(Layer layer : releasedDuringExport)
+                    {
+                        layer.release();
+                    }
+                    releasedDuringExport.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Bring the peak of every layer of every scene up (or down) to the same level.
+     * Scenes whose layers are still on disk are read first, and every layer is journaled again.
+     * Blocking, call from a background thread while nothing is playing.
+     * @param peak The peak to scale to, full scale is 1
+     */
+    public void normalizeLayers(float peak)
+    {
+        List<Scene> toNormalize;
+        synchronized(transportLock)
+        {
+            toNormalize = new ArrayList<>(scenes);
+        }
+        OfflineRenderer renderer = createOfflineRenderer();
+        try
+        {
+            for(Scene scene : toNormalize)
+            {
+                if(!scene.isPrepared())
+                {
+                    try
+                    {
+                        scene.prepare(sceneFilePool, slabPool, PREMIX_FRAMES);
+                    }
+                    catch(IOException e)
+                    {
+                        Log.e(LOG_TAG, "Couldn't read a scene's layers, leaving it as it is: " + e.getMessage());
+                        continue;
+                    }
+                }
+                List<Layer> layers = scene.getLayers();
+                renderer.normalize(layers, peak);
+                scene.invalidate();
+
+                SessionJournal sessionJournal = journal;
+                int sceneIndex = scenes.indexOf(scene);
+                if(sessionJournal != null && sceneIndex >= 0)
+                {
+                    for(int i = 0; i < layers.size(); i++)
+                    {
+                        sessionJournal.commitLayer(sceneIndex, i, layers.get(i));
+                    }
+                }
+            }
+        }
+        finally
+        {
+            renderer.shutdown();
+        }
+    }
+
+    /**
+     * @param journal Where committed layers are kept on disk, null for nowhere
+     */
+    public void setJournal(SessionJournal journal)
+    {
+        this.journal = journal;
+    }
+
+    /**
+     * Play another scene. While playing, it's prepared in the background
+     * and switched to at the first loop boundary after that.
+     * @param scene The scene to play
+     */
+    public void queueScene(final Scene scene)
+    {
+        synchronized(transportLock)
+        {
+            if(!isPlaying())
+            {
+                prepareScene(scene);
+                queuedScene = null;
+                currentScene = scene;
+                return;
+            }
+            scene.invalidate();
+            queuedScene = scene;
+        }
+
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                prepareScene(scene);
+            }
+        }).start();
+    }
+
+    /**
+     * Queue the scene after the current one, making a new empty scene after the last.
+     */
+    public void queueNextScene()
+    {
+        synchronized(transportLock)
+        {
+            Scene from = queuedScene != null ? queuedScene : currentScene;
+            int next = scenes.indexOf(from) + 1;
+            if(next >= scenes.size())
+            {
+                scenes.add(new Scene());
+                next = scenes.size() - 1;
+            }
+            queueScene(scenes.get(next));
+        }
+    }
+
+    /**
+     * Describe how the current scene's loop divides into bars and beats, for quantizing to them.
+     * Each scene keeps its own grid, the transport follows whichever scene is playing.
+     */
+    public void setGrid(int barsPerLoop, int beatsPerBar)
+    {
+        Scene scene = currentScene;
+        scene.setGrid(barsPerLoop, beatsPerBar);
+        transport.setGrid(scene.getBarsPerLoop(), scene.getBeatsPerBar());
+    }
+
+    private void prepareScene(Scene scene)
+    {
+        try
+        {
+            scene.prepare(sceneFilePool, slabPool, PREMIX_FRAMES);
+        }
+        catch(IOException e)
+        {
+            Log.e(LOG_TAG, "Couldn't prepare scene: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return Every scene of the song
+     */
+    public List<Scene> getScenes()
+    {
+        return scenes;
+    }
+
+    public Scene getCurrentScene()
+    {
+        return currentScene;
+    }
+
+    /**
+     * The first take decides the length of the loop, later takes are cut to fit it.
+     * @return The length of the current scene's loop in frames, 0 if nothing has been recorded.
+     */
+    public int getLoopLengthInFrames()
+    {
+        return currentScene.getLoopLengthInFrames();
+    }
+
+    /**
+     * @return The layers making up the current scene's loop, in the order they were recorded.
+     */
+    public List<Layer> getLayers()
+    {
+        return currentScene.getLayers();
     }
 
     /**
@@ -268,37 +865,186 @@ public class ObservableMediaPlayer extends Observable implements Observer
 //        }
 /*        else*/ if(!observableRecorder.isRecording())
         {
-            if(isPlaying())
-                stopPlayback();
-
+            //Overdubs are added while the loop keeps playing, the layer list is safe to change under the playback thread.
+            //Takes from the recorder come through addTake(), with the scene they were recorded in.
             Log.d(LOG_TAG, "Update called");
-            if(data instanceof short[])
+            //Takes come either as bare audio, or as a layer already set up, e.g. with its loop seam.
+            Layer newLayer = data instanceof Layer ? (Layer)data : data instanceof SampleBuffer ? new Layer((SampleBuffer)data, 1) : null;
+            if(newLayer != null)
             {
-                short[] newData = (short[])data;
-                Log.d(LOG_TAG, "Got some data: Length: " + newData.length + " Playbackdata length: " + (playbackData == null ? 0 : playbackData.length));
+                addTake(currentScene, newLayer);
+            }
+            else
+            {
+                Log.e(LOG_TAG, "New playback audio data not retrievable");
+            }
+        }
+    }
 
-                if(playbackData == null)
-                {
-                    playbackData = Arrays.copyOf(newData, newData.length);
-                }
-                else
+    /**
+     * Add a take to a scene as a layer of its own.
+     * A take into a scene that's been deleted since it started is dropped.
+     * @param scene The scene playing when the take started, playback may have switched to another since
+     * @param newLayer The take
+     */
+    public void addTake(Scene scene, Layer newLayer)
+    {
+        Log.d(LOG_TAG, "Got some data: Length: " + newLayer.getLengthInFrames() + " Loop length: " + scene.getLoopLengthInFrames());
+        if(newLayer.getPlaybackLengthInFrames() <= 0)
+        {
+            //As a first take it would make a loop of no frames, which can't be played.
+            Log.e(LOG_TAG, "Empty take, not adding it");
+            newLayer.release();
+            return;
+        }
+
+        //The playback thread still switches scenes at a boundary without the lock, that's why the scene is passed in.
+        synchronized(transportLock)
+        {
+            int sceneIndex = scenes.indexOf(scene);
+            if(sceneIndex < 0 && scene != currentScene)
+            {
+                Log.e(LOG_TAG, "Scene deleted while the take came in, dropping it");
+                newLayer.release();
+                return;
+            }
+
+            List<Layer> layers = scene.getLayers();
+            if(layers.isEmpty())
+            {
+                newLayer.setGain(1);
+                layers.add(newLayer);
+            }
+            else
+            {
+                //Otherwise will get too loud. Halve what's already there and add the new take at half,
+                //same as averaging the new take into the mix.
+                //TODO: scale so that the loudest peak of the added data becomes the maximum short can do.
+                for(Layer layer : layers)
                 {
-                    for (int i = 0; i < Math.min(newData.length, playbackData.length); i++)
-                    {
-                        playbackData[i] += newData[i];
-                        //Otherwise will get too loud.
-                        //TODO: scale so that the loudest peak of the added data becomes the maximum short can do.
-                        playbackData[i] *= 0.5f;
-                    }
+                    layer.setGain(layer.getGain()*0.5f);
                 }
+                newLayer.setGain(0.5f);
+                layers.add(newLayer);
             }
-            else
+            invalidateUnlessQueued(scene);
+
+            SessionJournal sessionJournal = journal;
+            if(sessionJournal != null && sceneIndex >= 0)
             {
-                Log.e(LOG_TAG, "New playback audio data not retrievable");
+                sessionJournal.commitLayer(sceneIndex, layers.size() - 1, newLayer);
             }
         }
     }
 
+    /**
+     * A scene's layers have changed, so its premix is stale. The scene being switched to keeps its premix,
+     * or the switch would wait for a preparation that never comes. It's only the first moments of the loop.
+     */
+    private void invalidateUnlessQueued(Scene scene)
+    {
+        if(scene != queuedScene)
+        {
+            scene.invalidate();
+        }
+    }
+
+    /**
+     * Merge a punched-in take into part of a layer, crossfading at both edges.
+     * Only the frames of the region are touched, however long the layer.
+     * @param scene The scene playing when the take started, playback may have switched to another since
+     * @param layerIndex The layer to merge into
+     * @param loopFrame Where in the loop the take starts, it wraps round the end of the loop
+     * @param take The take, exactly as long as the region unless playback stopped in it
+     */
+    public void mergePunch(Scene scene, int layerIndex, int loopFrame, SampleBuffer take)
+    {
+        //Same as adding a take: the scenes mustn't change while the layer is changed and journaled.
+        synchronized(transportLock)
+        {
+            int sceneIndex = scenes.indexOf(scene);
+            if(sceneIndex < 0 && scene != currentScene)
+            {
+                Log.e(LOG_TAG, "Scene deleted while the punch came in, dropping it");
+                return;
+            }
+            List<Layer> layers = scene.getLayers();
+            if(layerIndex < 0 || layerIndex >= layers.size())
+            {
+                Log.e(LOG_TAG, "No layer " + layerIndex + " to punch into");
+                return;
+            }
+            Layer layer = layers.get(layerIndex);
+            if(layer.isStretched())
+            {
+                //The take would have to be stretched to match first. The recorder shouldn't have started it.
+                Log.e(LOG_TAG, "Can't punch into a retimed layer");
+                return;
+            }
+
+            SampleBuffer samples = layer.getSamples();
+            int length = samples.getLength();
+            int frames = Math.min(take.getLength(), length);
+            int fadeFrames = Math.min(Transport.FADE_FRAMES, frames/2);
+            for(int i = 0; i < frames; i++)
+            {
+                int index = (loopFrame + i) % length;
+                int fromEdge = Math.min(i, frames - 1 - i);
+                float t = fromEdge < fadeFrames ? fromEdge/(float)fadeFrames : 1;
+                float merged = samples.get(index)*Transport.fadeOut(t) + take.get(i)*Transport.fadeIn(t);
+                samples.set(index, (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(merged))));
+            }
+
+            short[] seam = layer.getSeam();
+            //The region ending on the last frame of the loop still touches the audio the seam fades out of.
+            if(seam != null && (loopFrame < seam.length || loopFrame + frames >= length))
+            {
+                //The seam was baked from audio the punch has replaced.
+                layer.setSeam(null);
+            }
+            invalidateUnlessQueued(scene);
+
+            SessionJournal sessionJournal = journal;
+            if(sessionJournal != null && sceneIndex >= 0)
+            {
+                //Rewrites the whole layer, but on the journal's thread.
+                sessionJournal.commitLayer(sceneIndex, layerIndex, layer);
+            }
+        }
+    }
+
+    /**
+     * @return The transport driving playback
+     */
+    public Transport getTransport()
+    {
+        return transport;
+    }
+
+    /**
+     * @return The timeline frame that's being played right now, 0 when not playing.
+     */
+    public long getPlaybackHeadFrame()
+    {
+        return isPlaying() ? output.getPlaybackHeadPosition() : 0;
+    }
+
+    /**
+     * @return The metrics of the audio engine
+     */
+    public EngineMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * @return The pool all audio of takes and layers is kept in
+     */
+    public DirectBufferPool getSlabPool()
+    {
+        return slabPool;
+    }
+
     public int getFramesPerPeriod()
     {
         return FRAMES_PER_PERIOD;
@@ -308,19 +1054,19 @@ public class ObservableMediaPlayer extends Observable implements Observer
         return getSampleRate()/frequency;
     }
     /**
-     * @return The AudioTrack's sample rate
+     * @return The output's sample rate
      */
     public int getSampleRate()
     {
-        return track.getSampleRate();
+        return output.getSampleRate();
     }
 
     /**
-     * @return The AudioTrack's channel count
+     * @return The output's channel count
      */
     public int getChannelCount()
     {
-        return track.getChannelCount();
+        return output.getChannelCount();
     }
 
     /**
@@ -330,7 +1076,7 @@ public class ObservableMediaPlayer extends Observable implements Observer
     {
         //0.5 seconds. Since my frequency is 441, (50 frames per period, 882 periods per second)
         //Will be 44100 samples = 22050 frames. Clearly the period evenly goes into 22050 frames, so the duration is perfect.
-        return track.getSampleRate()/2;
+        return output.getSampleRate()/2;
     }
 
     /**
@@ -340,7 +1086,7 @@ public class ObservableMediaPlayer extends Observable implements Observer
     {
         //Frequency of interest should be an integer factor of sample rate
         //http://www.embedded.com/design/configurable-systems/4024443/The-Goertzel-Algorithm
-        return track.getSampleRate()/FRAMES_PER_PERIOD;
+        return output.getSampleRate()/FRAMES_PER_PERIOD;
     }
 
 //    public synchronized void notifyCanPlay()
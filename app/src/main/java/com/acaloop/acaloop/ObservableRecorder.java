@@ -6,8 +6,9 @@ import android.media.AudioRecord;
 import android.media.MediaRecorder;
 import android.util.Log;
 
-import java.util.Arrays;
+import java.io.IOException;
 import java.util.InvalidPropertiesFormatException;
+import java.util.List;
 import java.util.Observable;
 
 /**
@@ -15,29 +16,172 @@ import java.util.Observable;
  */
 public class ObservableRecorder extends Observable //implements Observer
 {
-    private AudioRecord recorder;
+    private AudioInput recorder;
     private int bufferSize;
 //    private NoiseSuppressor noiseSuppressor;
 
     private static String LOG_TAG = ObservableRecorder.class.getSimpleName();
     private int latency;
+    //Remembers the measured latency per audio route, null to forget it every launch.
+    private final LatencyCache latencyCache;
+    //The route, sample rate and buffer size latency was measured for, null if it hasn't been.
+    private String latencyKey;
 
     private ObservableMediaPlayer player;
+    //If set, the next take is also streamed to disk as it's captured.
+    private volatile WavWriter takeWriter;
+    //Journals every take as it's captured, null for none.
+    private volatile SessionJournal journal;
+    //True while an overdub is captured against the playing loop, which ends it on the loop's grid.
+    private volatile boolean overdubbing;
+    //The scene playing when the take started. The take goes to it even if playback has moved on to another since.
+    private volatile Scene takeScene;
 
-    public ObservableRecorder(ObservableMediaPlayer player) throws InvalidPropertiesFormatException
+    //Always-listening mode: the mic stays on, keeping the last few seconds in the pre-roll,
+    //so a take can start from a boundary that has already gone by.
+    public final static int PRE_ROLL_SECONDS = 8;
+    private volatile boolean listening;
+    //Not this, Observable's own methods lock on this and the listening thread notifies observers.
+    private final Object listeningLock = new Object();
+    //Set while a take has the mic to itself, if listening is to come back on after it. Changed under listeningLock.
+    private volatile boolean resumeListeningAfterTake;
+    private Thread listenThread;
+    private PreRollBuffer preRoll;
+    private volatile ListeningTake listeningTake;
+
+    //If set, overdubs only replace this part of one layer.
+    private volatile PunchRegion punchRegion;
+
+    //Fed everything the mic captures, for the tuner.
+    private final PitchDetector pitchDetector;
+    //What the capture threads read the mic into, before it's added to the take in the player's slab pool.
+    private final short[] captureBlock;
+
+    /**
+     * Keeps the part of a capture that falls inside a punch region, as it comes in. The rest is never stored.
+     */
+    private static class PunchCapture
+    {
+        final SampleBuffer take;
+        final long captureStartFrame;
+        final long startFrame;
+        final long stopFrame;
+        final int channelCount;
+        final int latency;
+        //Samples captured so far, kept or not.
+        int captured;
+        //The mic starts with some zeroes, the capture only lines up with the loop after them.
+        int leadingZeroes = -1;
+
+        PunchCapture(SampleBuffer take, long captureStartFrame, long startFrame, long stopFrame, int channelCount, int latency)
+        {
+            this.take = take;
+            this.captureStartFrame = captureStartFrame;
+            this.startFrame = startFrame;
+            this.stopFrame = stopFrame;
+            this.channelCount = channelCount;
+            this.latency = latency;
+        }
+
+        /**
+         * Take in the next captured block, keeping what lies in the region.
+         * @return True once the whole region has been captured
+         */
+        boolean append(short[] block, int offset, int length)
+        {
+            if(leadingZeroes < 0)
+            {
+                for(int i = 0; i < length && leadingZeroes < 0; i++)
+                {
+                    if(block[offset + i] != 0)
+                    {
+                        leadingZeroes = captured + i;
+                    }
+                }
+            }
+            if(leadingZeroes < 0)
+            {
+                captured += length;
+                return false;
+            }
+
+            //Same correction as every other take: leading zeroes, then the measured latency.
+            long from = (startFrame - captureStartFrame)*channelCount + leadingZeroes + latency;
+            long to = (stopFrame - captureStartFrame)*channelCount + leadingZeroes + latency;
+            int keepFrom = (int)Math.max(0, Math.min(length, from - captured));
+            int keepTo = (int)Math.max(0, Math.min(length, to - captured));
+            if(keepTo > keepFrom)
+            {
+                take.append(block, offset + keepFrom, keepTo - keepFrom);
+            }
+            captured += length;
+            return captured >= to;
+        }
+    }
+
+    /**
+     * An overdub taken while always listening, filled from the pre-roll and then by the listening thread.
+     */
+    private static class ListeningTake
+    {
+        SampleBuffer audioData;
+        int maxLength;
+        //Pre-roll index of the take's first sample
+        long captureFrom;
+        //Timeline frame playing when the take's first sample was captured, before latency.
+        long captureStartFrame;
+        int loopLengthInFrames;
+        boolean prefilled;
+    }
+
+    /**
+     * @param player The player takes are added to
+     * @param latencyCache Where latency is remembered per audio route
+     */
+    public ObservableRecorder(ObservableMediaPlayer player, LatencyCache latencyCache) throws InvalidPropertiesFormatException
     {
         super();
 
         this.player = player;
+        this.latencyCache = latencyCache;
         initRecorder();
+        pitchDetector = new PitchDetector(recorder.getSampleRate());
+        captureBlock = new short[bufferSize];
     }
 
     /**
-     * @return True iff the recorder is recording
+     * A recorder for any input, e.g. a SimulatedAudioDevice.
+     * @param player The player takes are added to
+     * @param input Where the recorder gets its audio from
+     * @param bufferSize Samples to read at a time
+     */
+    ObservableRecorder(ObservableMediaPlayer player, AudioInput input, int bufferSize)
+    {
+        super();
+
+        this.player = player;
+        latencyCache = null;
+        recorder = input;
+        this.bufferSize = bufferSize;
+        pitchDetector = new PitchDetector(recorder.getSampleRate());
+        captureBlock = new short[bufferSize];
+    }
+
+    /**
+     * @return True iff the recorder is recording a take
      */
     public boolean isRecording()
     {
-        return recorder!=null && recorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING;
+        //While always listening the mic is always on, we're only recording while there's a take.
+        return listening ? listeningTake != null : isCapturing();
+    }
+
+    /**
+     * @return True iff the mic is on
+     */
+    private boolean isCapturing()
+    {
+        return recorder!=null && recorder.isRecording();
     }
 
     /**
@@ -52,20 +196,25 @@ public class ObservableRecorder extends Observable //implements Observer
         //TODO: make sure no app is using mic already?
         //TODO: choose better sample rate, channel config, audio format if available.
         int sampleRateInHz = RecordActivity.SAMPLE_RATE_HZ;
-        int channelConfig = AudioFormat.CHANNEL_IN_STEREO;
+        //Phone mics give essentially the same signal on both channels, so capture mono.
+        //The player pans each layer when it renders the stereo output.
+        int channelConfig = AudioFormat.CHANNEL_IN_MONO;
         int audioFormat = RecordActivity.AUDIO_FORMAT;
         int minBufferSize = AudioRecord.getMinBufferSize(sampleRateInHz, channelConfig, audioFormat);
         bufferSize = minBufferSize;
 
         //Use CAMCORDER so that when headphones are plugged in, it still uses the mic from the phone
         //TODO: If headphones HAVE a mic, should be able to use that instead
-        recorder = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER,
+        AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER,
                 sampleRateInHz,channelConfig,audioFormat,minBufferSize);
 
-        if(recorder.getState() != AudioRecord.STATE_INITIALIZED)
+        if(record.getState() != AudioRecord.STATE_INITIALIZED)
         {
-            throw new InvalidPropertiesFormatException("Couldn't initialize AudioRecord. Recorder in state: " + recorder.getState());
+            throw new InvalidPropertiesFormatException("Couldn't initialize AudioRecord. Recorder in state: " + record.getState());
         }
+        recorder = new AndroidAudioInput(record);
+        //Whatever was measured for this route before, so overdubs line up without running the test again.
+        updateLatencyForRoute();
 
         //TODO: Test more with noise suppressor before adding this.
 //        if(Build.VERSION.SDK_INT >= 16 && NoiseSuppressor.isAvailable())
@@ -97,6 +246,36 @@ public class ObservableRecorder extends Observable //implements Observer
      */
     public void startRecording(final boolean isLatencyTestRecording)
     {
+        //Once there's a loop, takes are scheduled by the transport so they start and end on its grid.
+        if(!isLatencyTestRecording)
+        {
+            //The route may have changed since the last take.
+            updateLatencyForRoute();
+            takeScene = player.getCurrentScene();
+        }
+
+        //The first take has no grid to land on, it decides the loop length.
+        if(!isLatencyTestRecording && player.getLoopLengthInFrames() > 0)
+        {
+            PunchRegion region = punchRegion;
+            if(region != null)
+            {
+                startPunch(region);
+            }
+            else if(listening)
+            {
+                startListeningOverdub();
+            }
+            else
+            {
+                startOverdub();
+            }
+            return;
+        }
+
+        //The first take and the latency test read the mic themselves.
+        pauseListeningForTake();
+
         recorder.startRecording();
 
         //Start recording on a new thread. Absolutely don't block this one.
@@ -122,9 +301,19 @@ public class ObservableRecorder extends Observable //implements Observer
     {
         //Can only record up to this length in seconds.
         double maxRecordingLength = isLatencyTestRecording ? 3 : 5;
-        short []audioData= new short[(int)(recorder.getChannelCount()*recorder.getSampleRate()*maxRecordingLength)];
+        int maxLength = (int)(recorder.getChannelCount()*recorder.getSampleRate()*maxRecordingLength);
+        //Every slab is taken up front, the pool isn't touched while capturing.
+        SampleBuffer audioData = new SampleBuffer(player.getSlabPool(), maxLength);
         int offset = 0;
+        //The first take sets the loop, find its tempo while it comes in.
+        TempoEstimator tempoEstimator = isLatencyTestRecording ? null :
+                new TempoEstimator(recorder.getSampleRate(), maxLength/recorder.getChannelCount());
 
+        EngineMetrics metrics = player.getMetrics();
+        if(!isLatencyTestRecording)
+        {
+            beginJournalTake();
+        }
         Log.d(LOG_TAG, "Start recording" + System.currentTimeMillis());
         while(isRecording())
         {
@@ -132,13 +321,33 @@ public class ObservableRecorder extends Observable //implements Observer
 //            {
 //                player.notifyCanPlay();
 //            }
-            int shortsRead = recorder.read(audioData,offset,Math.min(bufferSize,audioData.length - offset));
+            int shortsWanted = Math.min(bufferSize,maxLength - offset);
+            int shortsRead = recorder.read(captureBlock,0,shortsWanted);
+            if(shortsRead < shortsWanted)
+            {
+                metrics.recordReadStarvation();
+            }
             if(shortsRead <=0 )
             {
                 stopRecording();
                 break;
             }
+            long captureStart = System.nanoTime();
+            streamTake(captureBlock, 0, shortsRead);
+            pitchDetector.process(captureBlock, 0, shortsRead, recorder.getChannelCount());
+            if(tempoEstimator != null)
+            {
+                tempoEstimator.process(captureBlock, 0, shortsRead, recorder.getChannelCount());
+            }
+            audioData.append(captureBlock, 0, shortsRead);
             offset+=shortsRead;
+            metrics.recordCaptureBlock(System.nanoTime() - captureStart);
+        }
+        pitchDetector.reset();
+        closeTakeWriter();
+        if(!isLatencyTestRecording)
+        {
+            endJournalTake();
         }
         //Not using recorder for foreseeable future, free resources.
         //cleanupRecorder();
@@ -146,39 +355,736 @@ public class ObservableRecorder extends Observable //implements Observer
         Log.d(LOG_TAG, "latency: " + latency + " " + isLatencyTestRecording);
 
         //Save our recorded data
-        int numZeroes = 0;
-        for(; numZeroes < audioData.length; numZeroes++)
-        {
-            if(audioData[numZeroes]!=0)
-            {
-                break;
-            }
-        }
+        int numZeroes = countLeadingZeroes(audioData, offset);
 
         Log.d(LOG_TAG, "Number of zeroes at beginning: " + numZeroes);
         //If we get zeroes at beginning, assume this is some other form of latency that we can account for.
         //remove them before calculating & applying latency correction
-        short[] recordedData = Arrays.copyOfRange(audioData, isLatencyTestRecording ? numZeroes : numZeroes + latency,offset);
+        int start = isLatencyTestRecording ? numZeroes : numZeroes + latency;
         //Explicitly notify the player so they get first priority with our data.
         setChanged();
         if(!isLatencyTestRecording)
         {
-            player.update(this, recordedData);
+            Layer layer = makeFirstLayer(audioData, Math.min(start, offset), offset, tempoEstimator);
+            if(layer != null)
+            {
+                player.addTake(takeScene, layer);
+            }
             notifyObservers();
         }
         else
         {
             //We have officially stopped recording now. send the audio data to whoever needs it.
-            notifyObservers(recordedData);
+            notifyObservers(audioData.toArray(Math.min(start, offset), offset));
         }
+        //The take has been cut out of it, the capture's slabs can go back to the pool.
+        audioData.release();
+
+        resumeListening();
     }
 
     /**
-     * Stop recording and release recorder.
+     * Cut the first take out of the capture, choosing its loop points so it wraps round without a click.
+     * @param audioData The capture
+     * @param start Where the take starts in the capture, once latency is accounted for
+     * @param offset How much of audioData was captured
+     * @param tempoEstimator The estimator that heard the take
+     * @return The layer for the take, with its seam. Null if nothing's left of the take once the latency is cut off,
+     *         e.g. when it was no longer than the latency or all zeroes.
+     */
+    private Layer makeFirstLayer(SampleBuffer audioData, int start, int offset, TempoEstimator tempoEstimator)
+    {
+        //Moving the start by a couple of ms is well within what the latency correction can tell anyway.
+        start = Math.min(offset, LoopSeam.snapToZeroCrossing(audioData, start, LoopSeam.SNAP_RADIUS));
+        if(start >= offset)
+        {
+            Log.e(LOG_TAG, "Nothing left of the first take after the latency, not looping it");
+            return null;
+        }
+        int end = start + fitToTempo(offset - start, tempoEstimator);
+        //A take cut short has audio past its end, move the end to where that audio best matches the start.
+        end = LoopSeam.findBestEnd(audioData, start, end, offset, LoopSeam.MATCH_RADIUS);
+        if(end <= start)
+        {
+            Log.e(LOG_TAG, "First take too short to loop");
+            return null;
+        }
+
+        SampleBuffer take = new SampleBuffer(player.getSlabPool(), end - start);
+        take.append(audioData, start, Math.min(end, offset) - start);
+        if(end > offset)
+        {
+            //Padded with silence: fade out where the take used to end.
+            take.appendSilence(end - offset);
+            int fadeLength = Math.min(Transport.FADE_FRAMES, offset - start);
+            for(int i = 0; i < fadeLength; i++)
+            {
+                int index = offset - start - fadeLength + i;
+                take.set(index, (short)Math.round(take.get(index)*Transport.fadeOut(i/(float)fadeLength)));
+            }
+        }
+
+        Layer layer = new Layer(take, 1);
+        layer.setSeam(LoopSeam.bakeSeam(audioData, start, end, offset, LoopSeam.SEAM_FRAMES));
+        return layer;
+    }
+
+    /**
+     * Find the whole number of bars nearest the first take's length, if it has a clear tempo,
+     * and lay the current scene's grid over those bars.
+     * @param takeLength Length of the take as it would be looped, in samples
+     * @param tempoEstimator The estimator that heard the take
+     * @return The length to loop the take at, in samples: a whole number of bars if a tempo was found
+     */
+    private int fitToTempo(int takeLength, TempoEstimator tempoEstimator)
+    {
+        int channelCount = getChannelCount();
+        int beatsPerBar = player.getCurrentScene().getBeatsPerBar();
+        if(!tempoEstimator.estimate(takeLength/channelCount, beatsPerBar))
+        {
+            Log.d(LOG_TAG, "No clear tempo, looping the take as it is");
+            player.setGrid(1, beatsPerBar);
+            return takeLength;
+        }
+
+        int loopLength = tempoEstimator.getLoopLengthInFrames()*channelCount;
+        Log.d(LOG_TAG, "Tempo: " + tempoEstimator.getBeatsPerMinute() + " BPM, " + tempoEstimator.getBarCount() +
+                " bars, take " + takeLength + " -> " + loopLength);
+        player.setGrid(tempoEstimator.getBarCount(), beatsPerBar);
+        return loopLength;
+    }
+
+    /**
+     * Arm an overdub on the transport and start capturing. If the loop isn't playing yet,
+     * it starts now, at the top of the loop, which is also where the take starts.
+     */
+    private void startOverdub()
+    {
+        Transport transport = player.getTransport();
+        overdubbing = true;
+        recorder.startRecording();
+        //Where the loop was when the mic started. Together with the latency this maps captured frames onto the loop.
+        final long captureStartFrame = player.getPlaybackHeadFrame();
+        transport.armRecord();
+
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeOverdubToStream(captureStartFrame);
+            }
+        }).start();
+
+        player.startPlayback();
+
+        setChanged();
+        notifyObservers();
+    }
+
+    /**
+     * Capture until the transport's scheduled end of the take,
+     * then cut the take out of the capture and hand it to the player lined up with the loop.
+     * @param captureStartFrame The timeline frame playing when the capture started
+     */
+    private void writeOverdubToStream(long captureStartFrame)
+    {
+        Transport transport = player.getTransport();
+        int channelCount = recorder.getChannelCount();
+        int loopLengthInFrames = player.getLoopLengthInFrames();
+        //Room for waiting up to a loop for the take to start, a loop of take, up to a loop waiting for it to end, and the latency.
+        int maxLength = channelCount*(3*loopLengthInFrames + recorder.getSampleRate()) + latency;
+        SampleBuffer audioData = new SampleBuffer(player.getSlabPool(), maxLength);
+        int offset = 0;
+        //Found as the capture comes in, -1 until the mic gives us anything but zeroes.
+        int leadingZeroes = -1;
+
+        EngineMetrics metrics = player.getMetrics();
+        beginJournalTake();
+        while(isRecording())
+        {
+            int shortsWanted = Math.min(bufferSize,maxLength - offset);
+            int shortsRead = recorder.read(captureBlock,0,shortsWanted);
+            if(shortsRead < shortsWanted)
+            {
+                metrics.recordReadStarvation();
+            }
+            if(shortsRead <=0 )
+            {
+                break;
+            }
+            long captureStart = System.nanoTime();
+            streamTake(captureBlock, 0, shortsRead);
+            pitchDetector.process(captureBlock, 0, shortsRead, channelCount);
+            audioData.append(captureBlock, 0, shortsRead);
+            if(leadingZeroes < 0)
+            {
+                int sound = findFirstSound(captureBlock, 0, shortsRead);
+                leadingZeroes = sound < 0 ? -1 : offset + sound;
+            }
+            offset+=shortsRead;
+            metrics.recordCaptureBlock(System.nanoTime() - captureStart);
+
+            //The end of the take is where commitOverdub will cut it, leading zeroes included.
+            long stopFrame = transport.getRecordStopFrame();
+            if(stopFrame >= 0 ? leadingZeroes >= 0 && offset >= (stopFrame - captureStartFrame)*channelCount + leadingZeroes + latency : transport.isStopped())
+            {
+                break;
+            }
+        }
+        recorder.stop();
+        pitchDetector.reset();
+        closeTakeWriter();
+        endJournalTake();
+        overdubbing = false;
+
+        //Same correction as the first take: leading zeroes, then the measured latency.
+        commitOverdub(audioData, offset, captureStartFrame, (leadingZeroes < 0 ? offset : leadingZeroes) + latency, loopLengthInFrames);
+        audioData.release();
+
+        //Listening may have been turned on while the take had the mic.
+        resumeListening();
+    }
+
+    /**
+     * Cut the take out of the capture and hand it to the player lined up with the loop.
+     * @param audioData The capture
+     * @param offset How much of audioData was captured
+     * @param captureStartFrame The timeline frame that was playing when the capture's first sample was captured
+     * @param correction Samples between the capture's first sample and the sound of captureStartFrame reaching us
+     * @param loopLengthInFrames Length of the loop the take was recorded against
+     */
+    private void commitOverdub(SampleBuffer audioData, int offset, long captureStartFrame, int correction, int loopLengthInFrames)
+    {
+        Transport transport = player.getTransport();
+        int channelCount = getChannelCount();
+        long startFrame = transport.getRecordStartFrame();
+        long stopFrame = transport.getRecordStopFrame();
+        int from = startFrame < 0 ? offset : (int)Math.max(0, (startFrame - captureStartFrame)*channelCount + correction);
+        int to = stopFrame < 0 ? offset : (int)Math.min(offset, (stopFrame - captureStartFrame)*channelCount + correction);
+        Log.d(LOG_TAG, "Overdub from frame " + startFrame + " to " + stopFrame + ", capture " + from + " to " + to + " of " + offset);
+
+        setChanged();
+        if(to - from <= 0)
+        {
+            //Playback stopped before the take ever started.
+            notifyObservers();
+            return;
+        }
+
+        SampleBuffer take = new SampleBuffer(player.getSlabPool(), to - from);
+        take.append(audioData, from, to - from);
+        fadeEdges(take);
+        player.addTake(takeScene, new Layer(lineUpWithLoop(take, transport.toLoopFrame(startFrame), loopLengthInFrames, player.getSlabPool()), 1));
+        take.release();
+        notifyObservers();
+    }
+
+    /**
+     * @param region Part of a layer for overdubs to replace, null for overdubs to be layers of their own
+     */
+    public void setPunchRegion(PunchRegion region)
+    {
+        punchRegion = region;
+    }
+
+    public PunchRegion getPunchRegion()
+    {
+        return punchRegion;
+    }
+
+    /**
+     * Punch in over a region of the loop. The take starts the next time the loop reaches the region,
+     * which is right away if the loop isn't playing yet, and ends with the region.
+     * @param region Where to punch in
+     */
+    private void startPunch(final PunchRegion region)
+    {
+        //Check before arming anything, the take couldn't be merged anyway.
+        List<Layer> layers = takeScene.getLayers();
+        int layerIndex = region.getLayerIndex();
+        if(layerIndex < 0 || layerIndex >= layers.size() || layers.get(layerIndex).isStretched())
+        {
+            Log.e(LOG_TAG, "Can't punch into layer " + layerIndex + ", it's not there or it's retimed");
+            return;
+        }
+
+        //Reads the mic itself, like the first take.
+        pauseListeningForTake();
+
+        Transport transport = player.getTransport();
+        overdubbing = true;
+        recorder.startRecording();
+        final long captureStartFrame = player.getPlaybackHeadFrame();
+        final long startFrame = player.isPlaying() ? transport.nextOccurrence(captureStartFrame, region.getInFrame()) : region.getInFrame();
+        final long stopFrame = startFrame + region.getLengthInFrames(player.getLoopLengthInFrames());
+        transport.armRecordBetween(startFrame, stopFrame);
+
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writePunchToStream(region, captureStartFrame, startFrame, stopFrame);
+            }
+        }).start();
+
+        player.startPlayback();
+
+        setChanged();
+        notifyObservers();
+    }
+
+    /**
+     * Capture until the end of the punch region, keeping only what's inside it, then merge that into the region's layer.
+     */
+    private void writePunchToStream(PunchRegion region, long captureStartFrame, long startFrame, long stopFrame)
+    {
+        Transport transport = player.getTransport();
+        int channelCount = recorder.getChannelCount();
+        int regionLength = (int)(stopFrame - startFrame)*channelCount;
+        PunchCapture punch = new PunchCapture(new SampleBuffer(player.getSlabPool(), regionLength),
+                captureStartFrame, startFrame, stopFrame, channelCount, latency);
+
+        EngineMetrics metrics = player.getMetrics();
+        beginJournalTake();
+        while(isRecording())
+        {
+            int shortsRead = recorder.read(captureBlock,0,bufferSize);
+            if(shortsRead < bufferSize)
+            {
+                metrics.recordReadStarvation();
+            }
+            if(shortsRead <=0 )
+            {
+                break;
+            }
+            long captureStart = System.nanoTime();
+            streamTake(captureBlock, 0, shortsRead);
+            pitchDetector.process(captureBlock, 0, shortsRead, channelCount);
+            boolean done = punch.append(captureBlock, 0, shortsRead);
+            metrics.recordCaptureBlock(System.nanoTime() - captureStart);
+            if(done || transport.isStopped())
+            {
+                break;
+            }
+        }
+        recorder.stop();
+        pitchDetector.reset();
+        closeTakeWriter();
+        endJournalTake();
+        overdubbing = false;
+
+        Log.d(LOG_TAG, "Punch from frame " + startFrame + " to " + stopFrame + ", kept " + punch.take.getLength() + " of " + regionLength);
+        setChanged();
+        if(punch.take.getLength() > 0)
+        {
+            player.mergePunch(takeScene, region.getLayerIndex(), transport.toLoopFrame(startFrame), punch.take);
+        }
+        punch.take.release();
+        notifyObservers();
+
+        resumeListening();
+    }
+
+    /**
+     * Turn always-listening mode on or off. While on, the mic stays on and the last
+     * PRE_ROLL_SECONDS of it are kept, so pressing record a little late still gets
+     * the take from the boundary that has just gone by. While a take has the mic to itself,
+     * this only decides whether listening comes back on once the take is done.
+     * @param enabled True to keep listening
+     */
+    public void setAlwaysListening(boolean enabled)
+    {
+        synchronized(listeningLock)
+        {
+            if(resumeListeningAfterTake || (enabled && !listening && isRecording()))
+            {
+                //A take has the mic, only decide what happens once it's done with it.
+                resumeListeningAfterTake = enabled;
+                return;
+            }
+            if(enabled == listening)
+                return;
+
+            if(enabled)
+            {
+                startListening();
+            }
+            else
+            {
+                stopListening();
+            }
+        }
+    }
+
+    /**
+     * Hand the mic over to a take that reads it itself, remembering to listen again after it.
+     */
+    private void pauseListeningForTake()
+    {
+        synchronized(listeningLock)
+        {
+            if(listening)
+            {
+                stopListening();
+                resumeListeningAfterTake = true;
+            }
+        }
+    }
+
+    /**
+     * Once a take that paused listening is done with the mic, listen again. Unless it was turned off in the meantime.
+     */
+    private void resumeListening()
+    {
+        synchronized(listeningLock)
+        {
+            if(resumeListeningAfterTake)
+            {
+                resumeListeningAfterTake = false;
+                startListening();
+            }
+        }
+    }
+
+    private void startListening()
+    {
+        synchronized(listeningLock)
+        {
+            if(preRoll == null)
+            {
+                preRoll = new PreRollBuffer(PRE_ROLL_SECONDS*recorder.getSampleRate()*recorder.getChannelCount());
+            }
+            listening = true;
+            recorder.startRecording();
+            listenThread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    listen();
+                }
+            });
+            listenThread.start();
+        }
+    }
+
+    /**
+     * @return True iff the always-listening mode is on
+     */
+    public boolean isAlwaysListening()
+    {
+        return listening || resumeListeningAfterTake;
+    }
+
+    private void stopListening()
+    {
+        synchronized(listeningLock)
+        {
+            listening = false;
+            if(listenThread != null)
+            {
+                try
+                {
+                    listenThread.join();
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                listenThread = null;
+            }
+            if(listeningTake != null)
+            {
+                //Abandoned, nothing of it is kept.
+                listeningTake.audioData.release();
+                listeningTake = null;
+                overdubbing = false;
+                closeTakeWriter();
+                endJournalTake();
+            }
+            recorder.stop();
+        }
+    }
+
+    /**
+     * Keep the pre-roll filled, and feed the take if there is one.
+     */
+    private void listen()
+    {
+        short[] block = new short[bufferSize];
+        EngineMetrics metrics = player.getMetrics();
+        while(listening)
+        {
+            int shortsRead = recorder.read(block, 0, block.length);
+            if(shortsRead < block.length)
+            {
+                metrics.recordReadStarvation();
+            }
+            if(shortsRead < 0)
+            {
+                Log.e(LOG_TAG, "Mic stopped while listening: " + shortsRead);
+                break;
+            }
+
+            long captureStart = System.nanoTime();
+            preRoll.write(block, 0, shortsRead);
+            pitchDetector.process(block, 0, shortsRead, getChannelCount());
+            ListeningTake take = listeningTake;
+            if(take != null && captureIntoTake(take, block, shortsRead))
+            {
+                listeningTake = null;
+                overdubbing = false;
+                closeTakeWriter();
+                endJournalTake();
+                commitOverdub(take.audioData, take.audioData.getLength(), take.captureStartFrame, latency, take.loopLengthInFrames);
+                take.audioData.release();
+            }
+            metrics.recordCaptureBlock(System.nanoTime() - captureStart);
+        }
+        pitchDetector.reset();
+    }
+
+    /**
+     * Add a freshly captured block to the take. The first time, everything since the start of the take
+     * (including the block, which is already in the pre-roll) comes from the pre-roll.
+     * @return True once the take has everything up to its scheduled end.
+     */
+    private boolean captureIntoTake(ListeningTake take, short[] block, int shortsRead)
+    {
+        Transport transport = player.getTransport();
+        if(!take.prefilled)
+        {
+            //The block is already in the pre-roll, so it's free to carry the pre-roll over a piece at a time.
+            int length = (int)Math.min(preRoll.getWritten() - take.captureFrom, take.maxLength);
+            for(int done = 0; done < length; )
+            {
+                int part = Math.min(block.length, length - done);
+                if(!preRoll.read(take.captureFrom + done, block, 0, part))
+                {
+                    Log.e(LOG_TAG, "Pre-roll overwritten before the take could be taken from it");
+                    break;
+                }
+                streamTake(block, 0, part);
+                take.audioData.append(block, 0, part);
+                done += part;
+            }
+            take.prefilled = true;
+        }
+        else
+        {
+            int length = Math.min(shortsRead, take.maxLength - take.audioData.getLength());
+            streamTake(block, 0, length);
+            take.audioData.append(block, 0, length);
+        }
+
+        int offset = take.audioData.getLength();
+        long stopFrame = transport.getRecordStopFrame();
+        return offset == take.maxLength ||
+                (stopFrame >= 0 ? offset >= (stopFrame - take.captureStartFrame)*getChannelCount() + latency : transport.isStopped());
+    }
+
+    /**
+     * Start an overdub while always listening. If the loop is playing, the take starts at the grid boundary
+     * nearest to what's being heard, which may already have gone by: that part comes from the pre-roll.
+     */
+    private void startListeningOverdub()
+    {
+        Transport transport = player.getTransport();
+        int channelCount = getChannelCount();
+        int loopLengthInFrames = player.getLoopLengthInFrames();
+
+        ListeningTake take = new ListeningTake();
+        take.loopLengthInFrames = loopLengthInFrames;
+        take.maxLength = channelCount*(3*loopLengthInFrames + recorder.getSampleRate()) + latency + preRoll.getCapacity();
+        take.audioData = new SampleBuffer(player.getSlabPool(), take.maxLength);
+
+        long now = preRoll.getWritten();
+        if(player.isPlaying())
+        {
+            long headFrame = player.getPlaybackHeadFrame();
+            long startFrame = transport.nearestBoundary(headFrame, transport.getQuantize());
+            transport.armRecordFrom(startFrame);
+            //Where the sound of the start frame is (or will be) in the pre-roll.
+            long startSample = now + (startFrame - headFrame)*channelCount + latency;
+            take.captureFrom = Math.max(preRoll.getOldestAvailable(), Math.min(startSample, now));
+            take.captureStartFrame = headFrame + (take.captureFrom - now)/channelCount;
+        }
+        else
+        {
+            //Same as without the pre-roll: the loop starts now, and so does the take.
+            transport.armRecord();
+            take.captureFrom = now;
+            take.captureStartFrame = 0;
+        }
+
+        overdubbing = true;
+        beginJournalTake();
+        listeningTake = take;
+        player.startPlayback();
+
+        setChanged();
+        notifyObservers();
+    }
+
+    /**
+     * Equal-power fade at both ends of a take, so punching in and out of the loop doesn't click.
+     */
+    private static void fadeEdges(SampleBuffer take)
+    {
+        int length = take.getLength();
+        int fadeFrames = Math.min(Transport.FADE_FRAMES, length/2);
+        for(int i = 0; i < fadeFrames; i++)
+        {
+            float t = i/(float)fadeFrames;
+            take.set(i, (short)Math.round(take.get(i)*Transport.fadeIn(t)));
+            take.set(length - 1 - i, (short)Math.round(take.get(length - 1 - i)*Transport.fadeIn(t)));
+        }
+    }
+
+    /**
+     * Layers always start at the top of the loop. Place a take that started somewhere in the loop where it belongs,
+     * wrapping around the end. Anything beyond one loop is dropped, as with every take.
+     * @param take The take
+     * @param loopFrame Where in the loop the take started
+     * @param loopLengthInFrames The length of the loop
+     * @param pool Pool for the layer data
+     * @return Layer data of exactly one loop
+     */
+    private static SampleBuffer lineUpWithLoop(SampleBuffer take, int loopFrame, int loopLengthInFrames, DirectBufferPool pool)
+    {
+        SampleBuffer layerData = new SampleBuffer(pool, loopLengthInFrames);
+        int length = Math.min(take.getLength(), loopLengthInFrames);
+        int firstPart = Math.min(length, loopLengthInFrames - loopFrame);
+        //Built front to back: the part that wrapped round, silence up to where the take started, then the take.
+        layerData.append(take, firstPart, length - firstPart);
+        layerData.appendSilence(loopFrame - (length - firstPart));
+        layerData.append(take, 0, firstPart);
+        layerData.appendSilence(loopLengthInFrames - loopFrame - firstPart);
+        return layerData;
+    }
+
+    /**
+     * @return The index of the first sample in [offset, offset + length) that isn't zero, relative to offset, or -1 if they all are
+     */
+    private static int findFirstSound(short[] data, int offset, int length)
+    {
+        for(int i = 0; i < length; i++)
+        {
+            if(data[offset + i] != 0)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int countLeadingZeroes(SampleBuffer data, int length)
+    {
+        int numZeroes = 0;
+        for(; numZeroes < length; numZeroes++)
+        {
+            if(data.get(numZeroes)!=0)
+            {
+                break;
+            }
+        }
+        return numZeroes;
+    }
+
+    /**
+     * @param journal Where takes are journaled as they're captured, null for nowhere
+     */
+    public void setJournal(SessionJournal journal)
+    {
+        this.journal = journal;
+    }
+
+    /**
+     * Start journaling a take for the scene it was started in.
+     */
+    private void beginJournalTake()
+    {
+        SessionJournal sessionJournal = journal;
+        if(sessionJournal != null)
+        {
+            sessionJournal.beginTake(player.getScenes().indexOf(takeScene));
+        }
+    }
+
+    private void endJournalTake()
+    {
+        SessionJournal sessionJournal = journal;
+        if(sessionJournal != null)
+        {
+            sessionJournal.endTake();
+        }
+    }
+
+    /**
+     * Stream the next take to a file as it's captured. The writer belongs to that take
+     * and is closed by the recorder when the take ends.
+     * @param writer A writer opened with the recorder's sample rate and channel count.
+     */
+    public void setTakeWriter(WavWriter writer)
+    {
+        takeWriter = writer;
+    }
+
+    /**
+     * Hand captured samples of the take to the journal, and to the take writer if there is one.
+     */
+    private void streamTake(short[] data, int offset, int length)
+    {
+        SessionJournal sessionJournal = journal;
+        if(sessionJournal != null)
+        {
+            sessionJournal.append(data, offset, length);
+        }
+
+        WavWriter writer = takeWriter;
+        if(writer == null)
+            return;
+
+        try
+        {
+            writer.write(data, offset, length);
+        }
+        catch(IOException e)
+        {
+            Log.e(LOG_TAG, "Couldn't stream take to disk, stopping the stream: " + e.getMessage());
+            closeTakeWriter();
+        }
+    }
+
+    private void closeTakeWriter()
+    {
+        WavWriter writer = takeWriter;
+        takeWriter = null;
+        if(writer == null)
+            return;
+
+        try
+        {
+            writer.close();
+        }
+        catch(IOException e)
+        {
+            Log.e(LOG_TAG, "Couldn't finish writing take: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop recording. An overdub is disarmed instead, and keeps recording until the transport's next boundary.
      */
     public void stopRecording()
     {
-        if(isRecording())
+        if(overdubbing)
+        {
+            player.getTransport().disarmRecord();
+        }
+        else if(isRecording())
         {
             recorder.stop();
         }
@@ -225,13 +1131,70 @@ public class ObservableRecorder extends Observable //implements Observer
 //    }
 
     /**
-     *Sets the latency correction value (in samples)
+     * @return The pitch detector listening to everything the mic captures
+     */
+    public PitchDetector getPitchDetector()
+    {
+        return pitchDetector;
+    }
+
+    /**
+     * @return The number of channels captured by the recorder
+     */
+    public int getChannelCount()
+    {
+        return recorder.getChannelCount();
+    }
+
+    /**
+     * @return The sample rate of the recorder
+     */
+    public int getSampleRate()
+    {
+        return recorder.getSampleRate();
+    }
+
+    /**
+     *Sets the latency correction value (in samples), and remembers it for the audio route in use.
      * @param samples Latency in samples
      */
     public void setLatency(int samples)
     {
         Log.d(LOG_TAG, "Latency set from: " + latency + " to: " + samples);
         latency = samples;
+        player.getMetrics().setRoundTripLatencyFrames(samples/getChannelCount());
+        if(latencyCache != null)
+        {
+            latencyKey = latencyCache.getKey(getSampleRate(), bufferSize);
+            latencyCache.store(latencyKey, samples);
+        }
+    }
+
+    /**
+     * Switch to the latency measured for the audio route in use, if the route has changed since the latency was set.
+     * If it's never been measured for this route, the latency we have is kept, being closer than none.
+     * @return True iff the latency was measured for the route in use
+     */
+    public boolean updateLatencyForRoute()
+    {
+        if(latencyCache == null)
+            return true;
+
+        String key = latencyCache.getKey(getSampleRate(), bufferSize);
+        if(key.equals(latencyKey))
+            return true;
+
+        int cached = latencyCache.load(key);
+        if(cached < 0)
+        {
+            Log.d(LOG_TAG, "No latency measured yet for " + key);
+            return false;
+        }
+        Log.d(LOG_TAG, "Latency for " + key + ": " + cached);
+        latency = cached;
+        latencyKey = key;
+        player.getMetrics().setRoundTripLatencyFrames(cached/getChannelCount());
+        return true;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,397 @@
+package com.acaloop.acaloop;
+
+import android.annotation.TargetApi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Offline work on a whole session, away from the playback thread: bouncing layers to a file, and batch processing them.
+ *
+ * Work is split across cores by layer where a layer has to be processed in order (stretched layers run through
+ * their own stretcher from the start), and by ranges of frames everywhere else. Every output sample is still summed
+ * from the layers in the order they're listed, whichever range it was in, so the result is sample for sample the same
+ * as rendering serially. The dither runs serially at the end, since its noise shaping carries from one sample to the next.
+ *
+ * ForkJoinPool needs API 21. Made with a parallelism of 1, the renderer runs the very same work serially on the caller's thread.
+ */
+public class OfflineRenderer
+{
+    //Smallest range of frames worth handing to another core.
+    public final static int LEAF_FRAMES = 16384;
+    //How much of a bounce is mixed before it's dithered and written out, to keep the mix buffer small.
+    public final static int SEGMENT_FRAMES = 16*LEAF_FRAMES;
+    //The channels of a bounce, the mixer always mixes stereo.
+    private final static int CHANNEL_COUNT = 2;
+
+    //Null when rendering serially.
+    private final ForkJoinPool pool;
+
+    /**
+     * @param parallelism Cores to spread the work over, 1 to work serially on the caller's thread
+     */
+    @TargetApi(21)
+    public OfflineRenderer(int parallelism)
+    {
+        pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * Stop the worker threads. The renderer isn't to be used after this.
+     */
+    @TargetApi(21)
+    public void shutdown()
+    {
+        if(pool != null)
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Mix layers from the top of the loop, as the player would play them.
+     * @param layers The layers, summed in this order
+     * @param frames Frames to render
+     * @return Interleaved stereo float, in the range [-1, 1] unless the layers clip
+     */
+    public float[] render(List<Layer> layers, int frames)
+    {
+        float[][] voices = renderVoices(layers, frames);
+        float[] mix = new float[frames*CHANNEL_COUNT];
+        mix(layers, voices, mix, 0, frames);
+        return mix;
+    }
+
+    /**
+     * Bounce layers to a 16-bit stereo WAV file, dithered.
+     * @param layers The layers, summed in this order
+     * @param frames Frames to bounce, e.g. the loop length
+     * @param destination The file to write, truncated
+     * @param sampleRate Sample rate of the layers
+     * @param filePool Pool for the file buffers
+     * @throws IOException If writing the file fails
+     */
+    public void export(List<Layer> layers, int frames, File destination, int sampleRate, DirectBufferPool filePool) throws IOException
+    {
+        float[][] voices = renderVoices(layers, frames);
+        float[] mix = new float[Math.min(frames, SEGMENT_FRAMES)*CHANNEL_COUNT];
+        short[] pcm = new short[mix.length];
+        OutputStage outputStage = new OutputStage(CHANNEL_COUNT);
+        WavWriter writer = new WavWriter(destination, sampleRate, CHANNEL_COUNT, filePool);
+        try
+        {
+            for(int from = 0; from < frames; from += SEGMENT_FRAMES)
+            {
+                int length = Math.min(SEGMENT_FRAMES, frames - from);
+                mix(layers, voices, mix, from, length);
+                outputStage.toPcm16(mix, pcm, length);
+                writer.write(pcm, 0, length*CHANNEL_COUNT);
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Scale every layer so its loudest sample sits at the given peak. Layers that are silent are left alone.
+     * A layer's seam is scaled along with it, it's made of the same audio.
+     * Changes the layers' samples in place, so not while they're being played.
+     * @param layers The layers to normalize
+     * @param peak The peak to scale to, full scale is 1
+     */
+    public void normalize(List<Layer> layers, float peak)
+    {
+        for(Layer layer : layers)
+        {
+            //Max is exact whichever order the ranges are combined in.
+            SampleBuffer samples = layer.getSamples();
+            int loudest = findPeak(samples, 0, samples.getLength());
+            if(loudest > 0)
+            {
+                float factor = peak*Short.MAX_VALUE/loudest;
+                scale(samples, 0, samples.getLength(), factor);
+                short[] seam = layer.getSeam();
+                if(seam != null)
+                {
+                    //A new seam rather than scaling in place, the journal may not have written the old one yet.
+                    short[] scaled = new short[seam.length];
+                    for(int i = 0; i < seam.length; i++)
+                    {
+                        scaled[i] = (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(seam[i]*factor)));
+                    }
+                    layer.setSeam(scaled);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run every stretched layer through a stretcher of its own, from the top of the loop, one layer per core.
+     * @return The rendered mono voice of each stretched layer, null for the others
+     */
+    private float[][] renderVoices(List<Layer> layers, int frames)
+    {
+        float[][] voices = new float[layers.size()][];
+        if(pool == null)
+        {
+            for(int i = 0; i < voices.length; i++)
+            {
+                voices[i] = renderVoice(layers.get(i), frames);
+            }
+            return voices;
+        }
+        invoke(new VoicesTask(layers, frames, voices));
+        return voices;
+    }
+
+    /**
+     * @return The layer run through a fresh stretcher, or null if it isn't stretched
+     */
+    private static float[] renderVoice(Layer layer, int frames)
+    {
+        if(!layer.isStretched())
+            return null;
+
+        int length = Math.max(0, Math.min(frames, layer.getPlaybackLengthInFrames()));
+        float[] voice = new float[length];
+        float[] block = new float[ObservableMediaPlayer.RENDER_BLOCK_FRAMES];
+        TimeStretcher stretcher = new TimeStretcher();
+        for(int from = 0; from < length; from += block.length)
+        {
+            int part = Math.min(block.length, length - from);
+            stretcher.render(layer.getSamples(), layer.getSpeed(), layer.getPitch(), from, block, part);
+            System.arraycopy(block, 0, voice, from, part);
+        }
+        return voice;
+    }
+
+    /**
+     * Mix frames [from, from + length) of the loop into the start of out, spread over cores by range.
+     */
+    private void mix(List<Layer> layers, float[][] voices, float[] out, int from, int length)
+    {
+        if(pool == null)
+        {
+            mixRange(layers, voices, out, from, 0, length);
+            return;
+        }
+        invoke(new MixTask(layers, voices, out, from, 0, length));
+    }
+
+    /**
+     * The mix of a single range, every layer in order, as LayerMixer does it.
+     * @param out Mix buffer, whose first frame is loop frame base
+     */
+    private static void mixRange(List<Layer> layers, float[][] voices, float[] out, int base, int outFrame, int frames)
+    {
+        for(int i = outFrame*CHANNEL_COUNT; i < (outFrame + frames)*CHANNEL_COUNT; i++)
+        {
+            out[i] = 0;
+        }
+        int startFrame = base + outFrame;
+        //Only the layers there were voices for, should the list have grown since.
+        for(int i = 0; i < voices.length; i++)
+        {
+            Layer layer = layers.get(i);
+            float[] voice = voices[i];
+            if(voice == null)
+            {
+                LayerMixer.mixPlain(layer, out, outFrame, startFrame, frames);
+                continue;
+            }
+            int end = Math.min(frames, voice.length - startFrame);
+            if(end > 0)
+            {
+                LayerMixer.mixVoice(voice, startFrame, out, outFrame, end, layer.getLeftGain(), layer.getRightGain());
+            }
+        }
+    }
+
+    /**
+     * @return The largest absolute sample in [from, to)
+     */
+    private int findPeak(SampleBuffer samples, int from, int to)
+    {
+        if(pool == null || to - from <= LEAF_FRAMES)
+        {
+            return findPeakInRange(samples, from, to);
+        }
+        PeakTask task = new PeakTask(samples, from, to);
+        invoke(task);
+        return task.peak;
+    }
+
+    private static int findPeakInRange(SampleBuffer samples, int from, int to)
+    {
+        int peak = 0;
+        for(int i = from; i < to; i++)
+        {
+            peak = Math.max(peak, Math.abs(samples.get(i)));
+        }
+        return peak;
+    }
+
+    private void scale(SampleBuffer samples, int from, int to, float factor)
+    {
+        if(pool == null || to - from <= LEAF_FRAMES)
+        {
+            scaleRange(samples, from, to, factor);
+            return;
+        }
+        invoke(new ScaleTask(samples, from, to, factor));
+    }
+
+    private static void scaleRange(SampleBuffer samples, int from, int to, float factor)
+    {
+        for(int i = from; i < to; i++)
+        {
+            int scaled = Math.round(samples.get(i)*factor);
+            samples.set(i, (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, scaled)));
+        }
+    }
+
+    @TargetApi(21)
+    private void invoke(RecursiveAction task)
+    {
+        pool.invoke(task);
+    }
+
+    /**
+     * One subtask per stretched layer.
+     */
+    @TargetApi(21)
+    private static class VoicesTask extends RecursiveAction
+    {
+        private final List<Layer> layers;
+        private final int frames;
+        private final float[][] voices;
+
+        VoicesTask(List<Layer> layers, int frames, float[][] voices)
+        {
+            this.layers = layers;
+            this.frames = frames;
+            this.voices = voices;
+        }
+
+        @Override
+        protected void compute()
+        {
+            RecursiveAction[] tasks = new RecursiveAction[layers.size()];
+            for(int i = 0; i < tasks.length; i++)
+            {
+                final int index = i;
+                tasks[i] = new RecursiveAction()
+                {
+                    @Override
+                    protected void compute()
+                    {
+                        voices[index] = renderVoice(layers.get(index), frames);
+                    }
+                };
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Halves its range until it's small enough to mix.
+     */
+    @TargetApi(21)
+    private static class MixTask extends RecursiveAction
+    {
+        private final List<Layer> layers;
+        private final float[][] voices;
+        private final float[] out;
+        private final int base;
+        private final int outFrame;
+        private final int frames;
+
+        MixTask(List<Layer> layers, float[][] voices, float[] out, int base, int outFrame, int frames)
+        {
+            this.layers = layers;
+            this.voices = voices;
+            this.out = out;
+            this.base = base;
+            this.outFrame = outFrame;
+            this.frames = frames;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(frames <= LEAF_FRAMES)
+            {
+                mixRange(layers, voices, out, base, outFrame, frames);
+                return;
+            }
+            int half = frames/2;
+            invokeAll(new MixTask(layers, voices, out, base, outFrame, half),
+                    new MixTask(layers, voices, out, base, outFrame + half, frames - half));
+        }
+    }
+
+    @TargetApi(21)
+    private static class PeakTask extends RecursiveAction
+    {
+        private final SampleBuffer samples;
+        private final int from;
+        private final int to;
+        int peak;
+
+        PeakTask(SampleBuffer samples, int from, int to)
+        {
+            this.samples = samples;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(to - from <= LEAF_FRAMES)
+            {
+                peak = findPeakInRange(samples, from, to);
+                return;
+            }
+            int middle = from + (to - from)/2;
+            PeakTask first = new PeakTask(samples, from, middle);
+            PeakTask second = new PeakTask(samples, middle, to);
+            invokeAll(first, second);
+            peak = Math.max(first.peak, second.peak);
+        }
+    }
+
+    @TargetApi(21)
+    private static class ScaleTask extends RecursiveAction
+    {
+        private final SampleBuffer samples;
+        private final int from;
+        private final int to;
+        private final float factor;
+
+        ScaleTask(SampleBuffer samples, int from, int to, float factor)
+        {
+            this.samples = samples;
+            this.from = from;
+            this.to = to;
+            this.factor = factor;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(to - from <= LEAF_FRAMES)
+            {
+                scaleRange(samples, from, to, factor);
+                return;
+            }
+            int middle = from + (to - from)/2;
+            invokeAll(new ScaleTask(samples, from, middle, factor), new ScaleTask(samples, middle, to, factor));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.acaloop.acaloop;
+
+/**
+ * The single point where the float audio pipeline is turned into samples for a sink.
+ * Everything before this works on 32-bit float blocks in the range [-1, 1],
+ * so rounding only happens once, here, with TPDF dither and first order noise shaping.
+ */
+public class OutputStage
+{
+    private static final float PCM_16_SCALE = 32767f;
+    //Two uniform values of 16 bits each, shifted so their difference spans +/- 1 LSB.
+    private static final float DITHER_SCALE = 1f/65536f;
+    //Shifting by this before truncating rounds to nearest for anything in the 16 bit range.
+    private static final int ROUNDING_OFFSET = 65536;
+    private static final float ROUNDING_BIAS = ROUNDING_OFFSET + 0.5f;
+
+    private final int channelCount;
+    //Last quantization error of each channel, fed back into the next sample.
+    private final float[] error;
+    private int seed = 0x2545F491;
+
+    /**
+     * @param channelCount The number of interleaved channels this stage converts
+     */
+    public OutputStage(int channelCount)
+    {
+        this.channelCount = channelCount;
+        this.error = new float[channelCount];
+    }
+
+    /**
+     * Convert interleaved float samples to dithered, noise shaped 16-bit PCM.
+     * @param in Float samples in [-1, 1]
+     * @param out Destination for the 16-bit samples
+     * @param frames The number of frames to convert
+     */
+    public void toPcm16(float[] in, short[] out, int frames)
+    {
+        int samples = frames*channelCount;
+        int r = seed;
+        for(int ch = 0; ch < channelCount; ch++)
+        {
+            float e = error[ch];
+            for(int i = ch; i < samples; i += channelCount)
+            {
+                //xorshift, cheap enough that the dither costs less than the mix feeding it.
+                r ^= r << 13;
+                r ^= r >>> 17;
+                r ^= r << 5;
+                float dither = ((r & 0xFFFF) - (r >>> 16))*DITHER_SCALE;
+
+                float wanted = in[i]*PCM_16_SCALE - e;
+                float biased = wanted + dither + ROUNDING_BIAS;
+                //Clamp before rounding so the int cast always sees a positive value, cheaper than Math.floor.
+                if(biased > ROUNDING_BIAS + Short.MAX_VALUE)
+                {
+                    biased = ROUNDING_BIAS + Short.MAX_VALUE;
+                }
+                else if(biased < ROUNDING_BIAS + Short.MIN_VALUE)
+                {
+                    biased = ROUNDING_BIAS + Short.MIN_VALUE;
+                }
+                int rounded = (int)biased - ROUNDING_OFFSET;
+                //Don't let clipping push the error feedback around.
+                float quantizationError = rounded - wanted;
+                e = quantizationError > 1f ? 1f : (quantizationError < -1f ? -1f : quantizationError);
+                out[i] = (short)rounded;
+            }
+            error[ch] = e;
+        }
+        seed = r;
+    }
+
+    /**
+     * Prepare samples for a sink that takes float directly (ENCODING_PCM_FLOAT).
+     * No dither needed, only clamping to the range the sink accepts.
+     * @param in Float samples
+     * @param out Destination, may be the same array as in
+     * @param frames The number of frames to convert
+     */
+    public void toPcmFloat(float[] in, float[] out, int frames)
+    {
+        int samples = frames*channelCount;
+        for(int i = 0; i < samples; i++)
+        {
+            float sample = in[i];
+            out[i] = sample > 1f ? 1f : (sample < -1f ? -1f : sample);
+        }
+    }
+
+    /**
+     * Forget the noise shaping history, e.g. when playback restarts.
+     */
+    public void reset()
+    {
+        for(int ch = 0; ch < channelCount; ch++)
+        {
+            error[ch] = 0;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.acaloop.acaloop;
+
+import java.util.Observable;
+
+/**
+ * Streaming YIN pitch detector, fed the mic input block by block from the capture thread.
+ * Observers are notified at display rate and read the latest pitch back from the getters.
+ *
+ * The input is halved in rate first, plenty for singing, and every analysis frame is spread over
+ * the blocks that arrive while the next frame fills up, so each block only pays for a slice of
+ * the difference function. Nothing is allocated after construction.
+ */
+public class PitchDetector extends Observable
+{
+    final static String[] NOTE_NAMES = {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
+
+    //Range of pitches we look for: a low male voice to well above a soprano's top C.
+    public final static float MIN_FREQUENCY = 60;
+    public final static float MAX_FREQUENCY = 1100;
+    //Analysis window, in samples after decimation. A multiple of 4 for the unrolled difference.
+    private final static int WINDOW = 512;
+    //How often a new frame is analysed, in samples after decimation. About 23ms at 44.1kHz.
+    private final static int HOP = 512;
+    private final static int DECIMATION = 2;
+    //YIN's absolute threshold on the normalised difference.
+    private final static float THRESHOLD = 0.15f;
+    //Frames quieter than this (RMS, full scale 1) are taken as silence rather than guessed at.
+    private final static float SILENCE_RMS = 0.01f;
+    public final static int DISPLAY_RATE_HZ = 20;
+
+    private final int decimatedRate;
+    private final int minLag;
+    private final int maxLag;
+
+    //Most recent decimated input.
+    private final float[] history;
+    private final int historyMask;
+    private long historyWritten;
+    private float pendingSum;
+    private int pendingCount;
+
+    //The frame being analysed, copied out of the history, and the analysis so far.
+    private final float[] frame;
+    //Running sums of squares of the frame, for the energy terms of the difference.
+    private final double[] energy;
+    private final float[] difference;
+    private boolean analysing;
+    private int nextLag;
+    private long lastFrameStart = -HOP;
+
+    private final int framesPerPublish;
+    private int framesSincePublish;
+
+    private volatile float frequency;
+    private volatile float clarity;
+    private float publishedFrequency = -1;
+
+    /**
+     * @param sampleRate Sample rate of the input
+     */
+    public PitchDetector(int sampleRate)
+    {
+        decimatedRate = sampleRate/DECIMATION;
+        minLag = (int)(decimatedRate/MAX_FREQUENCY);
+        maxLag = (int)Math.ceil(decimatedRate/MIN_FREQUENCY);
+
+        int frameLength = WINDOW + maxLag + 1;
+        history = new float[Integer.highestOneBit(frameLength - 1) << 1];
+        historyMask = history.length - 1;
+        frame = new float[frameLength];
+        energy = new double[frameLength + 1];
+        difference = new float[maxLag + 2];
+        framesPerPublish = sampleRate/DISPLAY_RATE_HZ;
+    }
+
+    /**
+     * Analyse a block of captured audio. Call from the capture thread only.
+     * @param data Captured samples
+     * @param offset Index of the first sample
+     * @param length Number of samples
+     * @param channelCount Channels interleaved in data, only the first is used
+     */
+    public void process(short[] data, int offset, int length, int channelCount)
+    {
+        int frames = length/channelCount;
+        //Enough lags that a frame is finished by the time the next one is due.
+        int lagBudget = (int)Math.ceil(frames*(double)maxLag/(HOP*DECIMATION));
+        for(int i = 0; i < frames; i++)
+        {
+            pendingSum += data[offset + i*channelCount];
+            if(++pendingCount == DECIMATION)
+            {
+                history[(int)(historyWritten++ & historyMask)] = pendingSum/(DECIMATION*(float)Short.MAX_VALUE);
+                pendingSum = 0;
+                pendingCount = 0;
+            }
+        }
+
+        if(!analysing && historyWritten >= frame.length && historyWritten - lastFrameStart >= HOP)
+        {
+            startFrame();
+        }
+        if(analysing)
+        {
+            int lagsToDo = Math.min(lagBudget, maxLag + 1 - nextLag);
+            computeDifference(nextLag, nextLag + lagsToDo);
+            nextLag += lagsToDo;
+            if(nextLag > maxLag)
+            {
+                analysing = false;
+                finishFrame();
+            }
+        }
+
+        framesSincePublish += frames;
+        if(framesSincePublish >= framesPerPublish)
+        {
+            framesSincePublish = 0;
+            publish();
+        }
+    }
+
+    /**
+     * Forget the input so far and report no pitch, e.g. when the mic stops.
+     */
+    public void reset()
+    {
+        historyWritten = 0;
+        pendingSum = 0;
+        pendingCount = 0;
+        analysing = false;
+        lastFrameStart = -HOP;
+        framesSincePublish = 0;
+        frequency = 0;
+        clarity = 0;
+        publish();
+    }
+
+    /**
+     * Copy the latest frame out of the history and set up its energy terms.
+     */
+    private void startFrame()
+    {
+        lastFrameStart = historyWritten;
+        long start = historyWritten - frame.length;
+        energy[0] = 0;
+        for(int i = 0; i < frame.length; i++)
+        {
+            float sample = history[(int)((start + i) & historyMask)];
+            frame[i] = sample;
+            energy[i + 1] = energy[i] + sample*sample;
+        }
+        difference[0] = 0;
+        nextLag = 1;
+        analysing = true;
+    }
+
+    /**
+     * YIN's difference function for lags in [from, to), with the energy terms taken from the running sums
+     * so only the cross term costs a pass over the window.
+     */
+    private void computeDifference(int from, int to)
+    {
+        double windowEnergy = energy[WINDOW];
+        for(int lag = from; lag < to; lag++)
+        {
+            //Four partial sums, so the multiplies don't all wait on one addition chain.
+            float cross0 = 0, cross1 = 0, cross2 = 0, cross3 = 0;
+            for(int i = 0; i < WINDOW; i += 4)
+            {
+                cross0 += frame[i]*frame[i + lag];
+                cross1 += frame[i + 1]*frame[i + 1 + lag];
+                cross2 += frame[i + 2]*frame[i + 2 + lag];
+                cross3 += frame[i + 3]*frame[i + 3 + lag];
+            }
+            float cross = (cross0 + cross1) + (cross2 + cross3);
+            difference[lag] = (float)(windowEnergy + energy[lag + WINDOW] - energy[lag] - 2*cross);
+        }
+    }
+
+    /**
+     * Normalise the difference, pick the first dip under the threshold and refine it between lags.
+     */
+    private void finishFrame()
+    {
+        if(Math.sqrt(energy[WINDOW]/WINDOW) < SILENCE_RMS)
+        {
+            frequency = 0;
+            clarity = 0;
+            return;
+        }
+
+        //Cumulative mean normalised difference, in place.
+        float runningSum = 0;
+        difference[0] = 1;
+        for(int lag = 1; lag <= maxLag; lag++)
+        {
+            runningSum += difference[lag];
+            difference[lag] = runningSum == 0 ? 1 : difference[lag]*lag/runningSum;
+        }
+
+        int best = -1;
+        for(int lag = minLag; lag <= maxLag; lag++)
+        {
+            if(difference[lag] < THRESHOLD)
+            {
+                while(lag < maxLag && difference[lag + 1] < difference[lag])
+                {
+                    lag++;
+                }
+                best = lag;
+                break;
+            }
+        }
+        if(best < 0)
+        {
+            frequency = 0;
+            clarity = 0;
+            return;
+        }
+
+        float refined = best;
+        if(best > 1 && best < maxLag)
+        {
+            float before = difference[best - 1];
+            float at = difference[best];
+            float after = difference[best + 1];
+            float curvature = before + after - 2*at;
+            if(curvature > 0)
+            {
+                refined += (before - after)/(2*curvature);
+            }
+        }
+        frequency = decimatedRate/refined;
+        clarity = 1 - difference[best];
+    }
+
+    /**
+     * Notify observers, but only if the reading has changed since they were last told.
+     */
+    private void publish()
+    {
+        float current = frequency;
+        if(current != publishedFrequency)
+        {
+            publishedFrequency = current;
+            setChanged();
+            notifyObservers();
+        }
+    }
+
+    /**
+     * @return True iff a pitch was heard in the latest frame
+     */
+    public boolean hasPitch()
+    {
+        return frequency > 0;
+    }
+
+    /**
+     * @return The latest pitch in Hz, 0 if none
+     */
+    public float getFrequency()
+    {
+        return frequency;
+    }
+
+    /**
+     * @return How clearly periodic the latest frame was, from 0 to 1
+     */
+    public float getClarity()
+    {
+        return clarity;
+    }
+
+    /**
+     * @param frequency A pitch in Hz
+     * @return MIDI note number of the nearest note
+     */
+    public static int getMidiNote(float frequency)
+    {
+        return Math.round(getMidiPitch(frequency));
+    }
+
+    /**
+     * @param frequency A pitch in Hz
+     * @return How far the pitch is from the nearest note, from -50 to 50
+     */
+    public static int getCents(float frequency)
+    {
+        float pitch = getMidiPitch(frequency);
+        return Math.round((pitch - Math.round(pitch))*100);
+    }
+
+    /**
+     * @param midiNote A MIDI note number
+     * @return The note's name, without the octave
+     */
+    public static String getNoteName(int midiNote)
+    {
+        return NOTE_NAMES[((midiNote % 12) + 12) % 12];
+    }
+
+    /**
+     * @param midiNote A MIDI note number
+     * @return The note's octave in scientific pitch notation, middle C being in octave 4
+     */
+    public static int getOctave(int midiNote)
+    {
+        return midiNote/12 - 1;
+    }
+
+    private static float getMidiPitch(float frequency)
+    {
+        return (float)(69 + 12*Math.log(frequency/440)/Math.log(2));
+    }
+}
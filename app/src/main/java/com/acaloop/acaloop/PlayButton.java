@@ -37,7 +37,8 @@ public class PlayButton extends Button implements Observer
                     {
                         if(observableMediaPlayer.isPlaying())
                         {
-                            observableMediaPlayer.stopPlayback();
+                            //Lands on the loop's grid, the button updates once it has actually stopped.
+                            observableMediaPlayer.stopPlaybackQuantized();
                         }
                         else
                         {
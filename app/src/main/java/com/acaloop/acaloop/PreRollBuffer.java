@@ -0,0 +1,108 @@
+package com.acaloop.acaloop;
+
+/**
+ * A fixed size ring holding the most recent mic input.
+ * One thread writes, any thread may read. Nothing is allocated or locked after construction:
+ * the writer publishes how far it has written, and a reader checks after copying that the
+ * writer hasn't lapped what it copied.
+ */
+public class PreRollBuffer
+{
+    private final short[] ring;
+    private final int mask;
+    //Total samples ever written. Only the writer changes these.
+    private volatile long written;
+    //Set before a write starts copying, so readers know what's about to be overwritten.
+    private volatile long reserved;
+    //Only ever written by readers, as a fence. See read().
+    private volatile int readFence;
+
+    /**
+     * @param minimumCapacity The least number of samples to keep, rounded up to a power of two
+     */
+    public PreRollBuffer(int minimumCapacity)
+    {
+        int capacity = Integer.highestOneBit(Math.max(1, minimumCapacity - 1)) << 1;
+        ring = new short[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Append samples, overwriting the oldest. Only ever call from one thread.
+     */
+    public void write(short[] data, int offset, int length)
+    {
+        long position = written;
+        if(length > ring.length)
+        {
+            //Only the last capacity worth would survive anyway.
+            position += length - ring.length;
+            offset += length - ring.length;
+            length = ring.length;
+        }
+
+        reserved = position + length;
+        int index = (int)(position & mask);
+        int firstPart = Math.min(length, ring.length - index);
+        System.arraycopy(data, offset, ring, index, firstPart);
+        System.arraycopy(data, offset + firstPart, ring, 0, length - firstPart);
+        written = position + length;
+    }
+
+    /**
+     * Copy samples out of the ring.
+     * @param from Index of the first sample, counted from the first sample ever written
+     * @param destination Where to copy to
+     * @param offset Index in destination of the first sample
+     * @param length Number of samples
+     * @return False if the samples aren't (or are no longer) all in the ring
+     */
+    public boolean read(long from, short[] destination, int offset, int length)
+    {
+        if(from < getOldestIntact() || from + length > written)
+        {
+            return false;
+        }
+
+        int index = (int)(from & mask);
+        int firstPart = Math.min(length, ring.length - index);
+        System.arraycopy(ring, index, destination, offset, firstPart);
+        System.arraycopy(ring, 0, destination, offset + firstPart, length - firstPart);
+
+        //Reading reserved alone doesn't stop the copy's plain reads from being done after it.
+        //Nothing before a volatile write can be moved after it, and volatile accesses stay in order,
+        //so with this write in between the copy really is finished before reserved is looked at.
+        readFence = 0;
+        //If the writer came round while we were copying, what we copied is partly newer audio.
+        return from >= getOldestIntact();
+    }
+
+    /**
+     * Like getOldestAvailable, but also leaving out whatever a write in progress is overwriting.
+     */
+    private long getOldestIntact()
+    {
+        return Math.max(0, reserved - ring.length);
+    }
+
+    /**
+     * @return Total samples ever written
+     */
+    public long getWritten()
+    {
+        return written;
+    }
+
+    /**
+     * @return Index of the oldest sample still in the ring
+     */
+    public long getOldestAvailable()
+    {
+        return Math.max(0, written - ring.length);
+    }
+
+    public int getCapacity()
+    {
+        return ring.length;
+    }
+}
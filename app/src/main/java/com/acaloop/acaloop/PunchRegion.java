@@ -0,0 +1,49 @@
+package com.acaloop.acaloop;
+
+/**
+ * A stretch of the loop to record over, in loop time. A take punched in over it replaces
+ * only that part of its layer, everything it hears outside the region is thrown away.
+ */
+public class PunchRegion
+{
+    private final int layerIndex;
+    private final int inFrame;
+    private final int outFrame;
+
+    /**
+     * @param layerIndex The layer of the current scene the take is merged into
+     * @param inFrame Loop frame the region starts at
+     * @param outFrame Loop frame after the last of the region, before inFrame if the region wraps round the end of the loop
+     */
+    public PunchRegion(int layerIndex, int inFrame, int outFrame)
+    {
+        this.layerIndex = layerIndex;
+        this.inFrame = inFrame;
+        this.outFrame = outFrame;
+    }
+
+    public int getLayerIndex()
+    {
+        return layerIndex;
+    }
+
+    public int getInFrame()
+    {
+        return inFrame;
+    }
+
+    public int getOutFrame()
+    {
+        return outFrame;
+    }
+
+    /**
+     * @param loopLengthInFrames The length of the loop
+     * @return The length of the region in frames
+     */
+    public int getLengthInFrames(int loopLengthInFrames)
+    {
+        int length = outFrame - inFrame;
+        return length > 0 ? length : length + loopLengthInFrames;
+    }
+}
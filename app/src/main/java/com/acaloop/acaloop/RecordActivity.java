@@ -1,15 +1,23 @@
 package com.acaloop.acaloop;
 
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.os.Bundle;
+import android.os.Environment;
 import android.support.v7.app.ActionBarActivity;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
+import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.InvalidPropertiesFormatException;
 import java.util.Observable;
 import java.util.Observer;
@@ -27,14 +35,31 @@ public class RecordActivity extends ActionBarActivity implements Observer
 
     final static int SAMPLE_RATE_HZ = 44100;
     final static int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
+    //How often the engine metrics are written to the log.
+    final static long METRICS_DUMP_PERIOD_MS = 10000;
+    //Under the app's files, where the session is journaled.
+    final static String JOURNAL_DIR = "journal";
+    //Where normalizing puts the peak of each layer, a little under full scale.
+    final static float NORMALIZE_PEAK = 0.9f;
 
     ObservableMediaPlayer observableMediaPlayer;
     ObservableRecorder observableRecorder;
+    SessionJournal sessionJournal;
+    LatencyCache latencyCache;
+    //Told when headphones come and go, which changes the latency.
+    BroadcastReceiver routeReceiver;
+    //True from starting a latency test until its result is in.
+    volatile boolean latencyTestRunning;
+    //True until the last session is back from the journal. Nothing may be recorded or tested before then.
+    volatile boolean restoringSession = true;
 
     PlayButton playButton;
     RecordButton recordButton;
     Button resetButton;
     Button latencyTestButton;
+    Button nextSceneButton;
+    Button preRollButton;
+    TunerView tunerView;
 
     Vector<Button> buttons;
 
@@ -55,17 +80,24 @@ public class RecordActivity extends ActionBarActivity implements Observer
         try
         {
             observableMediaPlayer = new ObservableMediaPlayer(this);
-            observableRecorder = new ObservableRecorder(observableMediaPlayer);
+            latencyCache = new LatencyCache(this);
+            observableRecorder = new ObservableRecorder(observableMediaPlayer, latencyCache);
         }
         catch (InvalidPropertiesFormatException e)
         {
-            e.printStackTrace();
+            //Without a player there's nothing the app can do.
+            Log.e(LOG_TAG, "Couldn't set up the audio engine", e);
+            finish();
+            return;
         }
 
         playButton = (PlayButton)findViewById(R.id.play_button);
         recordButton = (RecordButton)findViewById(R.id.record_button);
         resetButton = (Button)findViewById(R.id.reset_button);
         latencyTestButton = (Button)findViewById(R.id.latency_test_button);
+        nextSceneButton = (Button)findViewById(R.id.next_scene_button);
+        preRollButton = (Button)findViewById(R.id.pre_roll_button);
+        tunerView = (TunerView)findViewById(R.id.tuner_view);
 
         buttons = new Vector<>();
 
@@ -73,6 +105,8 @@ public class RecordActivity extends ActionBarActivity implements Observer
         buttons.add(recordButton);
         buttons.add(resetButton);
         buttons.add(latencyTestButton);
+        buttons.add(nextSceneButton);
+        buttons.add(preRollButton);
 
         playButton.attachMediaPlayer(observableMediaPlayer);
         recordButton.attachRecorder(observableRecorder);
@@ -80,7 +114,98 @@ public class RecordActivity extends ActionBarActivity implements Observer
         observableMediaPlayer.addObserver(playButton);
 
         observableRecorder.addObserver(recordButton);
+        observableRecorder.getPitchDetector().addObserver(tunerView);
 
+        observableMediaPlayer.getMetrics().startPeriodicDump(METRICS_DUMP_PERIOD_MS);
+
+        startJournal();
+        listenForRouteChanges();
+    }
+
+    /**
+     * Recalibrate when the audio route changes, but only if the new route has never been measured.
+     */
+    private void listenForRouteChanges()
+    {
+        routeReceiver = new BroadcastReceiver()
+        {
+            @Override
+            public void onReceive(Context context, Intent intent)
+            {
+                //The headset plug broadcast is sticky, so registering gets the last one again. The restore calibrates for that.
+                if(isInitialStickyBroadcast())
+                    return;
+
+                new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        calibrateIfNeeded();
+                    }
+                }).start();
+            }
+        };
+        IntentFilter filter = new IntentFilter(Intent.ACTION_HEADSET_PLUG);
+        filter.addAction(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
+        registerReceiver(routeReceiver, filter);
+    }
+
+    /**
+     * Pick up the latency stored for the route in use, and run the latency test if there's none.
+     * The test needs the loop quiet, so while playing or recording it waits for the next route change,
+     * until then the old latency is kept. It's only run by itself on the speaker: through headphones the mic
+     * doesn't hear the tone unless the user holds them to it, so that's left to the latency test button.
+     */
+    private synchronized void calibrateIfNeeded()
+    {
+        //The restore calibrates once it's done.
+        if(restoringSession || observableRecorder.updateLatencyForRoute() || latencyTestRunning)
+            return;
+
+        LatencyCache.Route route = latencyCache.getRoute();
+        if(route != LatencyCache.Route.SPEAKER)
+        {
+            Log.d(LOG_TAG, "Route " + route + " not calibrated, keeping the old latency until the test is run");
+            return;
+        }
+
+        if(observableMediaPlayer.isPlaying() || observableRecorder.isRecording())
+        {
+            Log.d(LOG_TAG, "Route not calibrated, but busy. Keeping the old latency for now");
+            return;
+        }
+        runLatencyTest();
+    }
+
+    /**
+     * Bring back whatever the journal kept of the last session, then keep journaling this one.
+     * The buttons stay off until then, a take journaled before the restore would be numbered
+     * against the scenes it's about to replace.
+     */
+    private void startJournal()
+    {
+        sessionJournal = new SessionJournal(new File(getFilesDir(), JOURNAL_DIR), SAMPLE_RATE_HZ);
+        setButtonsEnabled(false);
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                //Reads the layers back from disk, so not on this thread.
+                observableMediaPlayer.restoreScenes(sessionJournal.recover());
+                sessionJournal.start();
+                observableMediaPlayer.setJournal(sessionJournal);
+                observableRecorder.setJournal(sessionJournal);
+                restoringSession = false;
+                //After the scenes are back, the test plays a scene of its own. It turns the buttons on when it's done.
+                calibrateIfNeeded();
+                if(!latencyTestRunning)
+                {
+                    setButtonsEnabled(true);
+                }
+            }
+        }).start();
     }
 
     /**
@@ -97,6 +222,12 @@ public class RecordActivity extends ActionBarActivity implements Observer
     protected void onDestroy()
     {
         super.onDestroy();
+        //onCreate gave up before starting anything.
+        if(observableMediaPlayer == null || observableRecorder == null)
+            return;
+        observableMediaPlayer.getMetrics().stopPeriodicDump();
+        unregisterReceiver(routeReceiver);
+        sessionJournal.stop();
     }
 
     @Override
@@ -120,10 +251,98 @@ public class RecordActivity extends ActionBarActivity implements Observer
         {
             return true;
         }
+        if (id == R.id.action_normalize)
+        {
+            normalizeLayers();
+            return true;
+        }
+        if (id == R.id.action_export)
+        {
+            exportScene();
+            return true;
+        }
 
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Bring every layer of every scene to the same peak. Stops playback first, the layers are changed in place.
+     * Not while a take is coming in, it would be added to the layers as they're changed.
+     */
+    private void normalizeLayers()
+    {
+        if(restoringSession || latencyTestRunning || observableRecorder.isRecording())
+            return;
+
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                setButtonsEnabled(false);
+                observableMediaPlayer.stopPlayback();
+                observableMediaPlayer.normalizeLayers(NORMALIZE_PEAK);
+                setButtonsEnabled(true);
+            }
+        }).start();
+    }
+
+    /**
+     * Bounce one loop of the scene being played to a WAV file in the app's music folder on external storage.
+     * Playback carries on meanwhile.
+     */
+    private void exportScene()
+    {
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Scene scene = observableMediaPlayer.getCurrentScene();
+                File directory = getExternalFilesDir(Environment.DIRECTORY_MUSIC);
+                if(scene.isEmpty())
+                {
+                    showMessage(getString(R.string.export_empty));
+                    return;
+                }
+                if(directory == null)
+                {
+                    Log.e(LOG_TAG, "External storage isn't available to export to");
+                    showMessage(getString(R.string.export_failed));
+                    return;
+                }
+
+                int sceneNumber = observableMediaPlayer.getScenes().indexOf(scene) + 1;
+                File destination = new File(directory, "scene" + sceneNumber + "-" + System.currentTimeMillis() + ".wav");
+                try
+                {
+                    observableMediaPlayer.exportScene(scene, destination);
+                    showMessage(getString(R.string.export_done, destination.getPath()));
+                }
+                catch(IOException e)
+                {
+                    Log.e(LOG_TAG, "Couldn't export the scene", e);
+                    showMessage(getString(R.string.export_failed));
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Briefly show a message, from any thread.
+     */
+    private void showMessage(final String message)
+    {
+        runOnUiThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Toast.makeText(RecordActivity.this, message, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
 //    private void cleanup()
 //    {
 //        observableMediaPlayer.cleanupPlayer();
@@ -151,28 +370,79 @@ public class RecordActivity extends ActionBarActivity implements Observer
         }).start();
     }
 
+    /**
+     * Called when the next scene button is clicked.
+     * While playing, the next scene starts at the end of the current loop.
+     * @param v The next scene button
+     */
+    public void onClickNextScene(View v)
+    {
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                observableMediaPlayer.queueNextScene();
+            }
+        }).start();
+    }
+
+    /**
+     * Called when the pre-roll button is clicked. Toggles always listening,
+     * which lets a late press on record still get the take from the boundary just gone by.
+     * @param v The pre-roll button
+     */
+    public void onClickPreRoll(View v)
+    {
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final boolean listening = !observableRecorder.isAlwaysListening();
+                observableRecorder.setAlwaysListening(listening);
+                preRollButton.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        preRollButton.setText(listening ? R.string.pre_roll_on : R.string.pre_roll_off);
+                    }
+                });
+            }
+        }).start();
+    }
+
     /**
      * Called when latency test button is clicked.
      * @param v The latency test button
      */
     public void onClickLatencyTest(View v)
     {
-        final RecordActivity toObserve = this;
         new Thread(new Runnable()
         {
             @Override
             public void run()
             {
-                setButtonsEnabled(false);
                 //don't block UI thread.
-                observableMediaPlayer.setupLatencyTest();
-                observableRecorder.addObserver(toObserve);
-                //Starts recording, plays the sine wave.
-                observableRecorder.startRecording(true);
+                runLatencyTest();
             }
         }).start();
     }
 
+    /**
+     * Play the test tone and measure how long it takes to come back. Blocks, not for the UI thread.
+     */
+    private void runLatencyTest()
+    {
+        latencyTestRunning = true;
+        setButtonsEnabled(false);
+        observableMediaPlayer.setupLatencyTest();
+        observableRecorder.addObserver(this);
+        //Starts recording, plays the sine wave.
+        observableRecorder.startRecording(true);
+    }
+
     /**
      * Set all buttons to be enabled or disabled
      * @param enabled True if all buttons are to be enabled
@@ -203,77 +473,11 @@ public class RecordActivity extends ActionBarActivity implements Observer
      */
     public int findLatency(short[] data, int sampleRate, int frequency, int frequencyDurationInFrames, int channelCount)
     {
-        int mostLikelyOffsetInFrames = -1;
-        double powerOfOffset = 0; //arbitrary low value
-
-        double framesInOneMs = sampleRate/1000.0;
-
-        int lowerBoundMsec = 100;
-        int upperBoundMsec = 250;
         Log.d(LOG_TAG, "Duration (frames): " + frequencyDurationInFrames);
         Log.d(LOG_TAG, "Frequency: " + frequency);
         Log.d(LOG_TAG, "channel count: " + channelCount);
-
-        //If it hasn't found a better match for latency in 10 periods, we stop there.
-        //Prevents it from finding wrong values later and helps to terminate the algorithm faster.
-        //Need to have a sufficiently high error allowance so that we allow blips in the sound data,
-        //but need to have a low enough error allowance that the algorithm doesn't detect something later on as the tone.
-        final int ERROR_ALLOWANCE = 10;
-        for(int checkOffsetInFrames = (int)(lowerBoundMsec*framesInOneMs); checkOffsetInFrames < (int)(upperBoundMsec*framesInOneMs); checkOffsetInFrames++)
-        {
-
-            if(mostLikelyOffsetInFrames != -1 && (checkOffsetInFrames - mostLikelyOffsetInFrames) > observableMediaPlayer.getFramesPerPeriod()*ERROR_ALLOWANCE)
-            {
-                break;
-            }
-//            Log.d(LOG_TAG, "Check offset (frames): " + checkOffsetInFrames);
-            double power = calculateGoertzel(data, checkOffsetInFrames*channelCount, (checkOffsetInFrames + frequencyDurationInFrames)*channelCount,
-                    frequency, sampleRate, channelCount);
-
-            if(power > powerOfOffset)
-            {
-                powerOfOffset = power;
-                mostLikelyOffsetInFrames = checkOffsetInFrames;
-                Log.d(LOG_TAG, "new most likely: " + mostLikelyOffsetInFrames);
-            }
-        }
-
-//        logDataFromOffset(data, mostLikelyOffsetInFrames, frequencyDurationInFrames, channelCount);
-        return mostLikelyOffsetInFrames*channelCount;
-    }
-
-//    public void logDataFromOffset(short[] data, int mostLikelyOffsetInFrames, int frequencyDurationInFrames, int channelCount)
-//    {
-//        for(int i = mostLikelyOffsetInFrames; i < mostLikelyOffsetInFrames + frequencyDurationInFrames; i++ )
-//        {
-//            Log.d(LOG_TAG, ""+data[i*channelCount]);
-//        }
-//    }
-
-    /**
-     * Calculate the goertzel value
-     * @param sample The data in question
-     * @param beginInFrames The start of the section of data we should look at
-     * @param endInFrames The end of the section of data we should look at
-     * @param frequency The frequency we want the goertzel value for
-     * @param sampleRate The sample rate of the data
-     * @param channelCount The number of channels the audio data represents
-     * @return The power of the given frequency in the sample
-     */
-    public double calculateGoertzel(short[] sample, int beginInFrames, int endInFrames, double frequency, int sampleRate, int channelCount)
-    {
-        double skn, skn1, skn2;
-        skn = skn1 = 0;
-        for (int i = beginInFrames; i < endInFrames; i++)
-        {
-            skn2 = skn1;
-            skn1 = skn;
-            skn = 2 * Math.cos(2 * Math.PI * frequency / sampleRate) * skn1 - skn2 + sample[i*channelCount];
-        }
-
-        double wnk = Math.exp(-2 * Math.PI * frequency / sampleRate);
-
-        return 20* Math.log10(Math.abs((skn - wnk * skn1)));
+        return LatencyDetector.findLatency(data, sampleRate, frequency, frequencyDurationInFrames, channelCount,
+                observableMediaPlayer.getFramesPerPeriod());
     }
 
 //    public static String getAppDirPath()
@@ -299,13 +503,22 @@ public class RecordActivity extends ActionBarActivity implements Observer
                         observableMediaPlayer.getSampleRate(),
                         observableMediaPlayer.getLatencyToneFrequency(),
                         observableMediaPlayer.getLatencyToneDurationInFrames(),
-                        observableMediaPlayer.getChannelCount());
-                observableRecorder.setLatency(delayInSamples);
-                Log.d(LOG_TAG, "DELAY (ms): " + (((double)delayInSamples / (double)observableMediaPlayer.getChannelCount()) /
-                        (double)observableMediaPlayer.getSampleRate()) * 1000);
+                        observableRecorder.getChannelCount());
+                if(delayInSamples < 0)
+                {
+                    //No clear tone came back. Storing a guess would stick to the route.
+                    Log.e(LOG_TAG, "Latency test didn't hear the tone, keeping the old latency");
+                }
+                else
+                {
+                    observableRecorder.setLatency(delayInSamples);
+                    Log.d(LOG_TAG, "DELAY (ms): " + (((double)delayInSamples / (double)observableRecorder.getChannelCount()) /
+                            (double)observableMediaPlayer.getSampleRate()) * 1000);
+                }
 
                 observableRecorder.deleteObserver(this);
                 observableMediaPlayer.cleanupLatencyTest();
+                latencyTestRunning = false;
                 //Re-enable buttons again
                 setButtonsEnabled(true);
             }
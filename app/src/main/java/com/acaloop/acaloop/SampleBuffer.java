@@ -0,0 +1,189 @@
+package com.acaloop.acaloop;
+
+/**
+ * Mono PCM kept off the java heap, in fixed-size slabs from a DirectBufferPool.
+ * It grows a slab at a time as audio is appended, and hands its slabs back to the pool when released,
+ * so takes and layers come and go without the garbage collector ever having to move or free them.
+ *
+ * One thread appends and changes samples. Reads index each sample absolutely and never touch
+ * the slabs' positions, so any thread can read the samples once they've been written.
+ */
+public class SampleBuffer
+{
+    //Written from when lengthening with silence, slabs come back from the pool holding old audio.
+    private final static short[] SILENCE = new short[1024];
+
+    private final DirectBufferPool pool;
+    private final int slabShift;
+    private final int slabMask;
+    private DirectBufferPool.Block[] slabs;
+    private int slabCount;
+    private volatile int length;
+
+    /**
+     * @param pool The pool to take slabs from. Its blocks must hold a power of two of shorts.
+     * @param capacity Samples to make room for now, so appending up to that never has to wait on the pool
+     */
+    public SampleBuffer(DirectBufferPool pool, int capacity)
+    {
+        int slabLength = pool.getBlockSizeInBytes()/2;
+        if(Integer.bitCount(slabLength) != 1)
+        {
+            throw new IllegalArgumentException("Slabs must hold a power of two of samples, not " + slabLength);
+        }
+        this.pool = pool;
+        slabShift = Integer.numberOfTrailingZeros(slabLength);
+        slabMask = slabLength - 1;
+        slabs = new DirectBufferPool.Block[Math.max(1, (capacity + slabMask) >> slabShift)];
+        ensureCapacity(capacity);
+    }
+
+    /**
+     * @param data Mono PCM
+     * @param pool The pool to take slabs from
+     * @return A buffer holding a copy of data
+     */
+    public static SampleBuffer copyOf(short[] data, DirectBufferPool pool)
+    {
+        SampleBuffer buffer = new SampleBuffer(pool, data.length);
+        buffer.append(data, 0, data.length);
+        return buffer;
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        while(slabCount << slabShift < capacity)
+        {
+            if(slabCount == slabs.length)
+            {
+                DirectBufferPool.Block[] grown = new DirectBufferPool.Block[slabs.length*2];
+                System.arraycopy(slabs, 0, grown, 0, slabCount);
+                slabs = grown;
+            }
+            slabs[slabCount++] = pool.acquire();
+        }
+    }
+
+    /**
+     * Add samples to the end.
+     * @param source Samples to add
+     * @param offset Index of the first sample in source
+     * @param count Number of samples
+     */
+    public void append(short[] source, int offset, int count)
+    {
+        int index = length;
+        ensureCapacity(index + count);
+        while(count > 0)
+        {
+            DirectBufferPool.Block slab = slabs[index >> slabShift];
+            int slabOffset = index & slabMask;
+            int part = Math.min(count, slabMask + 1 - slabOffset);
+            slab.shorts.position(slabOffset);
+            slab.shorts.put(source, offset, part);
+            index += part;
+            offset += part;
+            count -= part;
+        }
+        //Only now, so readers never see samples that aren't there yet.
+        length = index;
+    }
+
+    /**
+     * Add part of another buffer to the end.
+     * @param source Buffer to copy from
+     * @param from Index of the first sample in source
+     * @param count Number of samples
+     */
+    public void append(SampleBuffer source, int from, int count)
+    {
+        int index = length;
+        ensureCapacity(index + count);
+        for(int i = 0; i < count; i++)
+        {
+            int to = index + i;
+            slabs[to >> slabShift].shorts.put(to & slabMask, source.get(from + i));
+        }
+        length = index + count;
+    }
+
+    /**
+     * Add silence to the end.
+     * @param count Number of samples of silence
+     */
+    public void appendSilence(int count)
+    {
+        while(count > 0)
+        {
+            int part = Math.min(count, SILENCE.length);
+            append(SILENCE, 0, part);
+            count -= part;
+        }
+    }
+
+    /**
+     * @param index Index of a sample below the length
+     * @return The sample
+     */
+    public short get(int index)
+    {
+        return slabs[index >> slabShift].shorts.get(index & slabMask);
+    }
+
+    /**
+     * Change a sample that's already been appended.
+     * @param index Index of a sample below the length
+     * @param value The new sample
+     */
+    public void set(int index, short value)
+    {
+        slabs[index >> slabShift].shorts.put(index & slabMask, value);
+    }
+
+    /**
+     * Copy samples out into an array.
+     * @param from Index of the first sample
+     * @param destination Where to copy them to
+     * @param offset Index in destination of the first sample
+     * @param count Number of samples
+     */
+    public void read(int from, short[] destination, int offset, int count)
+    {
+        for(int i = 0; i < count; i++)
+        {
+            destination[offset + i] = get(from + i);
+        }
+    }
+
+    /**
+     * @return A new heap array holding the samples in [from, to). Not for the audio threads.
+     */
+    public short[] toArray(int from, int to)
+    {
+        short[] array = new short[to - from];
+        read(from, array, 0, array.length);
+        return array;
+    }
+
+    /**
+     * @return The number of samples appended so far
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Give every slab back to the pool. The buffer is empty after this and isn't to be used again.
+     * The slabs stay referenced, so a reader that raced the release reads stale audio rather than crashing.
+     */
+    public void release()
+    {
+        length = 0;
+        for(int i = 0; i < slabCount; i++)
+        {
+            pool.release(slabs[i]);
+        }
+        slabCount = 0;
+    }
+}
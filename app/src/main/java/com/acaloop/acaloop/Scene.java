@@ -0,0 +1,189 @@
+package com.acaloop.acaloop;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One loop of a song, with its own layers and its own length.
+ * A scene queued to play next is prepared away from the playback thread first:
+ * layers kept on disk are loaded, and the first blocks are mixed ahead of time,
+ * so the switch costs the playback thread nothing.
+ */
+public class Scene
+{
+    //Copy-on-write so the playback thread can iterate without locking while layers are added.
+    private final List<Layer> layers = new CopyOnWriteArrayList<>();
+    //Layers that still have to be read from disk before the scene can play, and their seams, null where there's none.
+    private final List<File> layerFiles = new CopyOnWriteArrayList<>();
+    private final List<File> seamFiles = new CopyOnWriteArrayList<>();
+
+    private float[] premix;
+    private int premixFrames;
+    private volatile boolean prepared;
+
+    //How the loop divides into bars and beats, the transport takes it over while the scene plays.
+    private volatile int barsPerLoop = 1;
+    private volatile int beatsPerBar = Transport.DEFAULT_BEATS_PER_BAR;
+
+    public Scene()
+    {
+    }
+
+    /**
+     * A scene whose layers are WAV files, read when the scene is prepared.
+     * @param layerFiles Mono WAV files in the order they were recorded, the first decides the loop length
+     * @param seamFiles Mono WAV files of the layers' loop seams, null for a layer without one
+     */
+    public Scene(List<File> layerFiles, List<File> seamFiles)
+    {
+        this.layerFiles.addAll(layerFiles);
+        this.seamFiles.addAll(seamFiles);
+    }
+
+    /**
+     * @return The layers making up the loop, in the order they were recorded.
+     */
+    public List<Layer> getLayers()
+    {
+        return layers;
+    }
+
+    /**
+     * The first take decides the length of the loop, later takes are cut to fit it.
+     * @return The length of the loop in frames, 0 if nothing has been recorded.
+     */
+    public int getLoopLengthInFrames()
+    {
+        return layers.isEmpty() ? 0 : layers.get(0).getPlaybackLengthInFrames();
+    }
+
+    /**
+     * @return True iff the scene has nothing to play
+     */
+    public boolean isEmpty()
+    {
+        return layers.isEmpty() && layerFiles.isEmpty();
+    }
+
+    /**
+     * Load any layers still on disk and mix the start of the loop ahead of time.
+     * Blocking, call from a background thread.
+     * @param filePool Pool for the file buffers
+     * @param slabPool Pool the layers' audio is kept in
+     * @param framesToPremix How much of the start of the loop to mix
+     */
+    public void prepare(DirectBufferPool filePool, DirectBufferPool slabPool, int framesToPremix) throws IOException
+    {
+        short[] chunk = new short[filePool.getBlockSizeInBytes()/2];
+        int layerCount = layerFiles.size();
+        for(int i = 0; i < layerCount; i++)
+        {
+            WavReader reader = new WavReader(layerFiles.get(i), filePool);
+            try
+            {
+                int length = (int)reader.getLengthInFrames();
+                SampleBuffer samples = new SampleBuffer(slabPool, length);
+                int read;
+                while(samples.getLength() < length &&
+                        (read = reader.read(chunk, 0, Math.min(chunk.length, length - samples.getLength()))) > 0)
+                {
+                    samples.append(chunk, 0, read);
+                }
+                //The gain the layer had live: each take halved what was there and came in at half.
+                Layer layer = new Layer(samples, Math.scalb(1f, Math.max(i, 1) - layerCount));
+                File seamFile = seamFiles.get(i);
+                if(seamFile != null)
+                {
+                    layer.setSeam(readSeam(seamFile, filePool));
+                }
+                layers.add(layer);
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        layerFiles.clear();
+        seamFiles.clear();
+
+        int frames = Math.min(framesToPremix, getLoopLengthInFrames());
+        //Fresh stretchers: the layers' own may be in use by the playback thread, if the scene is already playing.
+        float[] mix = new OfflineRenderer(1).render(layers, frames);
+        premix = mix;
+        premixFrames = frames;
+        prepared = true;
+    }
+
+    private static short[] readSeam(File file, DirectBufferPool filePool) throws IOException
+    {
+        WavReader reader = new WavReader(file, filePool);
+        try
+        {
+            short[] seam = new short[(int)reader.getLengthInFrames()];
+            int done = 0;
+            int read;
+            while(done < seam.length && (read = reader.read(seam, done, seam.length - done)) > 0)
+            {
+                done += read;
+            }
+            return seam;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return True once the scene has been prepared and can be switched to without any work.
+     */
+    public boolean isPrepared()
+    {
+        return prepared;
+    }
+
+    /**
+     * Copy part of the premixed start of the loop. Only valid right after switching to the scene.
+     * The layers' own stretchers haven't been run through this part, they pick up from where it ends.
+     * @return The number of frames copied, 0 once past the premixed part.
+     */
+    public int readPremix(float[] out, int outFrame, int loopFrame, int frames)
+    {
+        int available = Math.min(frames, premixFrames - loopFrame);
+        if(available <= 0)
+        {
+            return 0;
+        }
+        System.arraycopy(premix, loopFrame*2, out, outFrame*2, available*2);
+        return available;
+    }
+
+    /**
+     * Describe how the loop divides into bars and beats, for quantizing to them.
+     */
+    public void setGrid(int barsPerLoop, int beatsPerBar)
+    {
+        this.barsPerLoop = Math.max(1, barsPerLoop);
+        this.beatsPerBar = Math.max(1, beatsPerBar);
+    }
+
+    public int getBarsPerLoop()
+    {
+        return barsPerLoop;
+    }
+
+    public int getBeatsPerBar()
+    {
+        return beatsPerBar;
+    }
+
+    /**
+     * Forget the premix, e.g. after the layers have changed.
+     */
+    public void invalidate()
+    {
+        prepared = false;
+    }
+}
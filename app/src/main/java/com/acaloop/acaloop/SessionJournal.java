@@ -0,0 +1,663 @@
+package com.acaloop.acaloop;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the session on disk while it's played, so it survives the app being killed.
+ *
+ * Everything is written by a background thread. The capturing thread only copies each block into a ring
+ * of preallocated blocks, and if the writer has fallen a whole ring behind the block is left out of the journal
+ * rather than the capture ever waiting for the disk. What's left out is journaled as silence of the same length,
+ * so the rest of the take keeps its place. The writer streams the take being captured to a WAV file
+ * through WavWriter's gathering writes, checkpointing it every second with a synced flush, and writes each layer
+ * to a file of its own once it's committed, along with its loop seam if it has one.
+ *
+ * After a restart, recover() gives back every scene as of the last checkpoint: its committed layers,
+ * and a first take that was still being captured when the app died.
+ * Gains aren't kept, they follow from the order the layers were added in. Nothing else about a layer is kept.
+ */
+public class SessionJournal
+{
+    final static String LOG_TAG = SessionJournal.class.getSimpleName();
+
+    //Samples per ring block, and blocks in the ring: about 6s of mono at 44.1kHz.
+    public final static int BLOCK_SAMPLES = 4096;
+    public final static int BLOCK_COUNT = 64;
+    //How often the take being captured is forced to disk.
+    public final static long CHECKPOINT_MS = 1000;
+    //How often the writer looks for new blocks.
+    private final static long POLL_MS = 20;
+    private final static int FILE_BUFFER_BYTES = 16*1024;
+
+    private final static Pattern LAYER_FILE = Pattern.compile("scene(\\d+)-layer(\\d+)\\.wav");
+    private final static Pattern SEAM_FILE = Pattern.compile("scene(\\d+)-layer(\\d+)-seam\\.wav");
+    private final static Pattern TAKE_FILE = Pattern.compile("scene(\\d+)-take\\.wav");
+    private final static String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final int sampleRate;
+    private final DirectBufferPool filePool = new DirectBufferPool(FILE_BUFFER_BYTES, 8);
+
+    //Single producer, single consumer ring of captured blocks.
+    private final short[][] blocks = new short[BLOCK_COUNT][BLOCK_SAMPLES];
+    private final int[] blockLengths = new int[BLOCK_COUNT];
+    //Samples left out of the journal just before each block, journaled as silence.
+    private final int[] blockGaps = new int[BLOCK_COUNT];
+    private volatile long blocksWritten;
+    private volatile long blocksRead;
+    private volatile boolean takeOpen;
+    //Only changed by the capturing thread.
+    private volatile long droppedSamples;
+    //Left out since the last block that made it into the ring. Only touched by the capturing thread.
+    private int pendingGap;
+
+    //Everything but samples, in order with the blocks they came after. Rare, so allocating here is fine.
+    private final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<>();
+
+    //Cleared to stop the writer, which then writes out what's left.
+    private volatile Thread writerThread;
+    //The writer waits on this between polls, stop() wakes it. Never interrupted,
+    //that would close the file channels under it and lose the last of the take.
+    private final Object wake = new Object();
+
+    //Only touched by the writer thread.
+    private WavWriter takeWriter;
+    private boolean takeDirty;
+    private long reportedDroppedSamples;
+    private final short[] layerChunk = new short[BLOCK_SAMPLES];
+    private final short[] silence = new short[BLOCK_SAMPLES];
+
+    private static class Event
+    {
+        final static int BEGIN_TAKE = 0;
+        final static int END_TAKE = 1;
+        final static int COMMIT_LAYER = 2;
+        final static int CLEAR = 3;
+
+        final int type;
+        //Handled once the writer has taken this many blocks.
+        final long afterBlock;
+        int scene;
+        int layer;
+        SampleBuffer samples;
+        short[] seam;
+        //Samples left out of the take just before the event.
+        int gap;
+
+        Event(int type, long afterBlock)
+        {
+            this.type = type;
+            this.afterBlock = afterBlock;
+        }
+    }
+
+    /**
+     * @param directory Where the journal is kept, made if need be
+     * @param sampleRate Sample rate of the session, all audio in it is mono
+     */
+    public SessionJournal(File directory, int sampleRate)
+    {
+        this.directory = directory;
+        this.sampleRate = sampleRate;
+        if(!directory.isDirectory() && !directory.mkdirs())
+        {
+            Log.e(LOG_TAG, "Couldn't make the journal directory " + directory);
+        }
+    }
+
+    /**
+     * Start the writer thread. Anything journaled before this waits for it.
+     */
+    public synchronized void start()
+    {
+        if(writerThread != null)
+            return;
+
+        writerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                write();
+            }
+        });
+        writerThread.start();
+    }
+
+    /**
+     * Write out whatever is left and stop the writer thread. Blocks until it's done.
+     */
+    public void stop()
+    {
+        Thread thread;
+        synchronized(this)
+        {
+            thread = writerThread;
+            writerThread = null;
+        }
+        if(thread == null)
+            return;
+
+        synchronized(wake)
+        {
+            wake.notifyAll();
+        }
+        try
+        {
+            thread.join();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A take starts being captured. Its samples are journaled until endTake().
+     * @param scene Index of the scene the take is for
+     */
+    public void beginTake(int scene)
+    {
+        pendingGap = 0;
+        Event event = new Event(Event.BEGIN_TAKE, blocksWritten);
+        event.scene = scene;
+        events.add(event);
+        takeOpen = true;
+    }
+
+    /**
+     * Journal captured samples of the take. Never blocks, only called from the capturing thread.
+     * @param data Captured mono samples
+     * @param offset Index of the first sample in data
+     * @param length Number of samples
+     */
+    public void append(short[] data, int offset, int length)
+    {
+        if(!takeOpen)
+            return;
+
+        while(length > 0)
+        {
+            long written = blocksWritten;
+            if(written - blocksRead == BLOCK_COUNT)
+            {
+                droppedSamples += length;
+                pendingGap += length;
+                return;
+            }
+            int slot = (int)(written % BLOCK_COUNT);
+            int part = Math.min(length, BLOCK_SAMPLES);
+            System.arraycopy(data, offset, blocks[slot], 0, part);
+            blockLengths[slot] = part;
+            blockGaps[slot] = pendingGap;
+            pendingGap = 0;
+            blocksWritten = written + 1;
+            offset += part;
+            length -= part;
+        }
+    }
+
+    /**
+     * The take has stopped being captured.
+     */
+    public void endTake()
+    {
+        takeOpen = false;
+        Event event = new Event(Event.END_TAKE, blocksWritten);
+        event.gap = pendingGap;
+        pendingGap = 0;
+        events.add(event);
+    }
+
+    /**
+     * A layer has been added to a scene, or its audio has changed. It's written out in full with its seam,
+     * and from then on replaces the take it was cut from.
+     * @param scene Index of the scene
+     * @param index Index of the layer in the scene
+     * @param layer The layer, its audio is read later by the writer thread. Layers are only released
+     *              along with clearing the journal, which throws away whatever was read of them.
+     */
+    public void commitLayer(int scene, int index, Layer layer)
+    {
+        Event event = new Event(Event.COMMIT_LAYER, blocksWritten);
+        event.scene = scene;
+        event.layer = index;
+        event.samples = layer.getSamples();
+        event.seam = layer.getSeam();
+        events.add(event);
+    }
+
+    /**
+     * Forget the whole session, e.g. when everything is deleted.
+     */
+    public void clear()
+    {
+        events.add(new Event(Event.CLEAR, blocksWritten));
+    }
+
+    /**
+     * Samples left out are journaled as silence, so a take with any is damaged but keeps its length.
+     * @return Captured samples left out of the journal because the writer couldn't keep up
+     */
+    public long getDroppedSamples()
+    {
+        return droppedSamples;
+    }
+
+    private void write()
+    {
+        long lastCheckpoint = System.currentTimeMillis();
+        while(writerThread == Thread.currentThread())
+        {
+            drain();
+            long now = System.currentTimeMillis();
+            if(now - lastCheckpoint >= CHECKPOINT_MS)
+            {
+                checkpoint();
+                lastCheckpoint = now;
+            }
+            synchronized(wake)
+            {
+                if(writerThread != Thread.currentThread())
+                    break;
+                try
+                {
+                    wake.wait(POLL_MS);
+                }
+                catch(InterruptedException e)
+                {
+                    //Nothing interrupts the writer, stop() clears writerThread.
+                    Log.e(LOG_TAG, "Journal writer interrupted, carrying on");
+                }
+            }
+        }
+        drain();
+        closeTake();
+    }
+
+    /**
+     * Write every block and handle every event there is so far, in the order they came.
+     */
+    private void drain()
+    {
+        while(true)
+        {
+            Event event = events.peek();
+            long limit = event == null ? blocksWritten : event.afterBlock;
+            while(blocksRead < limit)
+            {
+                int slot = (int)(blocksRead % BLOCK_COUNT);
+                writeSilenceToTake(blockGaps[slot]);
+                writeToTake(blocks[slot], blockLengths[slot]);
+                blocksRead = blocksRead + 1;
+            }
+            if(event == null)
+                break;
+
+            events.poll();
+            handle(event);
+        }
+
+        long dropped = droppedSamples;
+        if(dropped != reportedDroppedSamples)
+        {
+            Log.e(LOG_TAG, "Journal fell behind, " + (dropped - reportedDroppedSamples) + " samples of the take weren't kept");
+            reportedDroppedSamples = dropped;
+        }
+    }
+
+    private void handle(Event event)
+    {
+        switch(event.type)
+        {
+            case Event.BEGIN_TAKE:
+                closeTake();
+                try
+                {
+                    takeWriter = new WavWriter(getTakeFile(event.scene), sampleRate, 1, filePool);
+                }
+                catch(IOException e)
+                {
+                    Log.e(LOG_TAG, "Couldn't start journaling the take: " + e.getMessage());
+                }
+                break;
+            case Event.END_TAKE:
+                writeSilenceToTake(event.gap);
+                closeTake();
+                break;
+            case Event.COMMIT_LAYER:
+                writeLayer(event.scene, event.layer, event.samples, event.seam);
+                break;
+            case Event.CLEAR:
+                closeTake();
+                File[] files = directory.listFiles();
+                if(files != null)
+                {
+                    for(File file : files)
+                    {
+                        deleteFile(file);
+                    }
+                }
+                break;
+        }
+    }
+
+    private void writeToTake(short[] block, int length)
+    {
+        if(takeWriter == null)
+            return;
+
+        try
+        {
+            takeWriter.write(block, 0, length);
+            takeDirty = true;
+        }
+        catch(IOException e)
+        {
+            Log.e(LOG_TAG, "Couldn't journal the take, it won't be recoverable: " + e.getMessage());
+            closeTake();
+        }
+    }
+
+    /**
+     * Stand in for samples left out of the take.
+     */
+    private void writeSilenceToTake(int length)
+    {
+        for(int done = 0; done < length && takeWriter != null; done += silence.length)
+        {
+            writeToTake(silence, Math.min(silence.length, length - done));
+        }
+    }
+
+    /**
+     * Make everything written to the take so far survive a crash.
+     */
+    private void checkpoint()
+    {
+        if(takeWriter == null || !takeDirty)
+            return;
+
+        try
+        {
+            takeWriter.flush(true);
+            takeDirty = false;
+        }
+        catch(IOException e)
+        {
+            Log.e(LOG_TAG, "Couldn't checkpoint the take: " + e.getMessage());
+        }
+    }
+
+    private void closeTake()
+    {
+        WavWriter writer = takeWriter;
+        takeWriter = null;
+        takeDirty = false;
+        if(writer == null)
+            return;
+
+        try
+        {
+            writer.flush(true);
+            writer.close();
+        }
+        catch(IOException e)
+        {
+            Log.e(LOG_TAG, "Couldn't finish journaling the take: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write a layer and its seam to temporary files and move them into place once they're synced,
+     * so a layer file is either complete or not there at all.
+     */
+    private void writeLayer(int scene, int layer, SampleBuffer samples, short[] seam)
+    {
+        File file = getLayerFile(scene, layer);
+        File temp = new File(directory, file.getName() + TEMP_SUFFIX);
+        File seamFile = getSeamFile(scene, layer);
+        File seamTemp = new File(directory, seamFile.getName() + TEMP_SUFFIX);
+        try
+        {
+            if(seam != null)
+            {
+                WavWriter seamWriter = new WavWriter(seamTemp, sampleRate, 1, filePool);
+                try
+                {
+                    seamWriter.write(seam, 0, seam.length);
+                    seamWriter.flush(true);
+                }
+                finally
+                {
+                    seamWriter.close();
+                }
+            }
+            WavWriter writer = new WavWriter(temp, sampleRate, 1, filePool);
+            try
+            {
+                int length = samples.getLength();
+                for(int done = 0; done < length; done += layerChunk.length)
+                {
+                    int part = Math.min(layerChunk.length, length - done);
+                    samples.read(done, layerChunk, 0, part);
+                    writer.write(layerChunk, 0, part);
+                }
+                writer.flush(true);
+            }
+            finally
+            {
+                writer.close();
+            }
+            //A layer whose seam was dropped mustn't come back with the old one.
+            if(seam == null)
+            {
+                deleteFile(seamFile);
+            }
+            else if(!seamTemp.renameTo(seamFile))
+            {
+                throw new IOException("Couldn't move " + seamTemp + " to " + seamFile);
+            }
+            if(!temp.renameTo(file))
+            {
+                throw new IOException("Couldn't move " + temp + " to " + file);
+            }
+        }
+        catch(IOException e)
+        {
+            Log.e(LOG_TAG, "Couldn't journal layer " + layer + " of scene " + scene + ": " + e.getMessage());
+            deleteFile(temp);
+            deleteFile(seamTemp);
+            return;
+        }
+        //The layer holds everything of the take that's kept.
+        deleteFile(getTakeFile(scene));
+    }
+
+    private File getLayerFile(int scene, int layer)
+    {
+        return new File(directory, "scene" + scene + "-layer" + layer + ".wav");
+    }
+
+    private File getSeamFile(int scene, int layer)
+    {
+        return new File(directory, "scene" + scene + "-layer" + layer + "-seam.wav");
+    }
+
+    private File getTakeFile(int scene)
+    {
+        return new File(directory, "scene" + scene + "-take.wav");
+    }
+
+    private static void deleteFile(File file)
+    {
+        if(file.exists() && !file.delete())
+        {
+            Log.e(LOG_TAG, "Couldn't delete " + file);
+        }
+    }
+
+    private static void deleteFiles(Collection<File> files)
+    {
+        for(File file : files)
+        {
+            deleteFile(file);
+        }
+    }
+
+    /**
+     * Rebuild the session from the journal, as of its last checkpoint. Call before start().
+     * Scenes are numbered again from 0 so they match the player's list from here on.
+     * A take that was still being captured is kept if it's the first of its scene. An overdub can't be,
+     * it can't be lined up with the loop without the transport it was recorded against.
+     * @return The recovered scenes in order, their layers are read from disk when they're prepared.
+     */
+    public List<Scene> recover()
+    {
+        SortedMap<Integer, SortedMap<Integer, File>> layerFiles = new TreeMap<>();
+        SortedMap<Integer, SortedMap<Integer, File>> seamFiles = new TreeMap<>();
+        SortedMap<Integer, File> takeFiles = new TreeMap<>();
+        File[] files = directory.listFiles();
+        if(files == null)
+        {
+            files = new File[0];
+        }
+        for(File file : files)
+        {
+            Matcher layerMatch = LAYER_FILE.matcher(file.getName());
+            Matcher seamMatch = SEAM_FILE.matcher(file.getName());
+            Matcher takeMatch = TAKE_FILE.matcher(file.getName());
+            if(layerMatch.matches())
+            {
+                int scene = Integer.parseInt(layerMatch.group(1));
+                if(!layerFiles.containsKey(scene))
+                {
+                    layerFiles.put(scene, new TreeMap<Integer, File>());
+                }
+                layerFiles.get(scene).put(Integer.parseInt(layerMatch.group(2)), file);
+            }
+            else if(seamMatch.matches())
+            {
+                int scene = Integer.parseInt(seamMatch.group(1));
+                if(!seamFiles.containsKey(scene))
+                {
+                    seamFiles.put(scene, new TreeMap<Integer, File>());
+                }
+                seamFiles.get(scene).put(Integer.parseInt(seamMatch.group(2)), file);
+            }
+            else if(takeMatch.matches())
+            {
+                takeFiles.put(Integer.parseInt(takeMatch.group(1)), file);
+            }
+            else
+            {
+                //Layers that never got moved into place.
+                deleteFile(file);
+            }
+        }
+
+        for(int scene : takeFiles.keySet())
+        {
+            File take = takeFiles.get(scene);
+            if(!layerFiles.containsKey(scene) && hasAudio(take))
+            {
+                SortedMap<Integer, File> layers = new TreeMap<>();
+                layers.put(0, take);
+                layerFiles.put(scene, layers);
+                //A seam would be of the layer the take was being cut to, not of the take.
+                SortedMap<Integer, File> seams = seamFiles.remove(scene);
+                if(seams != null)
+                {
+                    deleteFiles(seams.values());
+                }
+            }
+            else
+            {
+                deleteFile(take);
+            }
+        }
+
+        List<Scene> scenes = new ArrayList<>();
+        for(int oldScene : layerFiles.keySet())
+        {
+            int scene = scenes.size();
+            SortedMap<Integer, File> sceneSeams = seamFiles.remove(oldScene);
+            List<File> layers = new ArrayList<>();
+            List<File> seams = new ArrayList<>();
+            for(Map.Entry<Integer, File> entry : layerFiles.get(oldScene).entrySet())
+            {
+                File file = entry.getValue();
+                File seam = sceneSeams == null ? null : sceneSeams.remove(entry.getKey());
+                File renamed = getLayerFile(scene, layers.size());
+                File renamedSeam = getSeamFile(scene, layers.size());
+                if(!file.equals(renamed) && !file.renameTo(renamed))
+                {
+                    Log.e(LOG_TAG, "Couldn't renumber " + file + ", leaving it out");
+                    if(seam != null)
+                    {
+                        deleteFile(seam);
+                    }
+                    continue;
+                }
+                if(seam != null && !seam.equals(renamedSeam) && !seam.renameTo(renamedSeam))
+                {
+                    Log.e(LOG_TAG, "Couldn't renumber " + seam + ", leaving the layer's seam out");
+                    deleteFile(seam);
+                    seam = null;
+                }
+                layers.add(renamed);
+                seams.add(seam == null ? null : renamedSeam);
+            }
+            if(sceneSeams != null)
+            {
+                deleteFiles(sceneSeams.values());
+            }
+            if(!layers.isEmpty())
+            {
+                scenes.add(new Scene(layers, seams));
+            }
+        }
+        //Seams of layers that aren't there any more.
+        for(SortedMap<Integer, File> sceneSeams : seamFiles.values())
+        {
+            deleteFiles(sceneSeams.values());
+        }
+        Log.d(LOG_TAG, "Recovered " + scenes.size() + " scenes");
+        return scenes;
+    }
+
+    /**
+     * @return True iff the WAV file had any audio in it as of its last checkpoint
+     */
+    private boolean hasAudio(File file)
+    {
+        try
+        {
+            WavReader reader = new WavReader(file, filePool);
+            try
+            {
+                return reader.getLengthInFrames() > 0;
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch(IOException e)
+        {
+            return false;
+        }
+    }
+}
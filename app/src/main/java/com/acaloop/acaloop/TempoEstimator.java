@@ -0,0 +1,203 @@
+package com.acaloop.acaloop;
+
+/**
+ * Estimates the tempo of the first take while it's being recorded, to suggest a loop length
+ * that's a whole number of bars.
+ *
+ * Each hop of input is reduced to one onset strength (the rise in log energy of the differenced signal,
+ * which favours transients), and the autocorrelation of that envelope is updated as each value arrives.
+ * Once recording stops, all that's left is to pick the best beat period out of the autocorrelation,
+ * which doesn't depend on the length of the take.
+ */
+public class TempoEstimator
+{
+    //Input frames per onset strength value, about 12ms at 44.1kHz.
+    public final static int HOP = 512;
+    public final static float MIN_BPM = 60;
+    public final static float MAX_BPM = 180;
+    //Most likely tempo before we've heard anything, tempos an octave away are half as likely.
+    private final static float PRIOR_BPM = 120;
+    //Normalised autocorrelation at the beat period below which the take isn't rhythmic enough to trust.
+    private final static double MIN_CORRELATION = 0.25;
+
+    private final int sampleRate;
+    private final int minLag;
+    private final int maxLag;
+
+    //Onset strength per hop, and its running sum.
+    private final float[] envelope;
+    private final double[] envelopeSums;
+    private int hops;
+    //Autocorrelation of the envelope, up to the longest beat.
+    private final double[] autocorrelation;
+
+    private float previousSample;
+    private double hopEnergy;
+    private int hopFill;
+    private double previousLogEnergy = -1;
+
+    private float beatsPerMinute;
+    private int barCount;
+    private int loopLengthInFrames;
+
+    /**
+     * @param sampleRate Sample rate of the take
+     * @param maxFrames Longest take that will be analysed, in frames
+     */
+    public TempoEstimator(int sampleRate, int maxFrames)
+    {
+        this.sampleRate = sampleRate;
+        double hopsPerMinute = 60.0*sampleRate/HOP;
+        minLag = (int)Math.floor(hopsPerMinute/MAX_BPM);
+        maxLag = (int)Math.ceil(hopsPerMinute/MIN_BPM);
+        envelope = new float[maxFrames/HOP + 1];
+        envelopeSums = new double[envelope.length + 1];
+        autocorrelation = new double[maxLag + 2];
+    }
+
+    /**
+     * Take in the next block of the take.
+     * @param data Captured samples
+     * @param offset Index of the first sample
+     * @param length Number of samples
+     * @param channelCount Channels interleaved in data, only the first is used
+     */
+    public void process(short[] data, int offset, int length, int channelCount)
+    {
+        int frames = length/channelCount;
+        for(int i = 0; i < frames; i++)
+        {
+            float sample = data[offset + i*channelCount];
+            float difference = sample - previousSample;
+            previousSample = sample;
+            hopEnergy += difference*difference;
+            if(++hopFill == HOP)
+            {
+                addHop();
+            }
+        }
+    }
+
+    /**
+     * Turn the finished hop into an onset strength and fold it into the autocorrelation.
+     */
+    private void addHop()
+    {
+        double logEnergy = Math.log(hopEnergy/HOP + 1);
+        hopEnergy = 0;
+        hopFill = 0;
+        if(hops == envelope.length)
+        {
+            return;
+        }
+
+        float onset = previousLogEnergy < 0 ? 0 : (float)Math.max(0, logEnergy - previousLogEnergy);
+        previousLogEnergy = logEnergy;
+        envelope[hops] = onset;
+        envelopeSums[hops + 1] = envelopeSums[hops] + onset;
+        int lags = Math.min(hops, autocorrelation.length - 1);
+        for(int lag = 0; lag <= lags; lag++)
+        {
+            autocorrelation[lag] += onset*envelope[hops - lag];
+        }
+        hops++;
+    }
+
+    /**
+     * Pick the tempo, and the whole number of bars closest to the take's length.
+     * @param takeLengthInFrames Length of the take as it will be looped
+     * @param beatsPerBar Beats in a bar
+     * @return True iff a tempo was found. If not, the take has no clear beat and should be looped as it is.
+     */
+    public boolean estimate(int takeLengthInFrames, int beatsPerBar)
+    {
+        //Need at least a couple of the slowest beats to see any periodicity.
+        if(hops < 2*maxLag)
+        {
+            return false;
+        }
+
+        double zeroLag = getCorrelation(0);
+        if(zeroLag <= 0)
+        {
+            return false;
+        }
+
+        int best = -1;
+        double bestScore = 0;
+        for(int lag = minLag; lag <= maxLag; lag++)
+        {
+            double score = getCorrelation(lag)/zeroLag;
+            double octavesFromPrior = Math.log(60.0*sampleRate/(lag*HOP)/PRIOR_BPM)/Math.log(2);
+            score *= Math.exp(-0.5*octavesFromPrior*octavesFromPrior);
+            if(score > bestScore)
+            {
+                bestScore = score;
+                best = lag;
+            }
+        }
+        if(best < 0 || getCorrelation(best)/zeroLag < MIN_CORRELATION)
+        {
+            return false;
+        }
+
+        //The beat rarely falls on a whole number of hops, refine between them.
+        double refined = best;
+        if(best > minLag && best < maxLag)
+        {
+            double before = getCorrelation(best - 1);
+            double at = getCorrelation(best);
+            double after = getCorrelation(best + 1);
+            double curvature = before + after - 2*at;
+            if(curvature < 0)
+            {
+                refined += 0.5*(before - after)/curvature;
+            }
+        }
+
+        double beatLengthInFrames = refined*HOP;
+        beatsPerMinute = (float)(60.0*sampleRate/beatLengthInFrames);
+        double barLengthInFrames = beatsPerBar*beatLengthInFrames;
+        barCount = Math.max(1, (int)Math.round(takeLengthInFrames/barLengthInFrames));
+        loopLengthInFrames = (int)Math.round(barCount*barLengthInFrames);
+        return true;
+    }
+
+    /**
+     * @return Autocovariance of the envelope at the given lag, averaged over the overlap.
+     * The mean is taken out here from the running sums rather than while streaming.
+     */
+    private double getCorrelation(int lag)
+    {
+        int overlap = hops - lag;
+        if(overlap <= 0)
+        {
+            return 0;
+        }
+        double mean = envelopeSums[hops]/hops;
+        double laterSum = envelopeSums[hops] - envelopeSums[lag];
+        double earlierSum = envelopeSums[overlap];
+        return (autocorrelation[lag] - mean*(laterSum + earlierSum) + overlap*mean*mean)/overlap;
+    }
+
+    public float getBeatsPerMinute()
+    {
+        return beatsPerMinute;
+    }
+
+    /**
+     * @return Bars in the suggested loop
+     */
+    public int getBarCount()
+    {
+        return barCount;
+    }
+
+    /**
+     * @return The suggested loop length, a whole number of bars
+     */
+    public int getLoopLengthInFrames()
+    {
+        return loopLengthInFrames;
+    }
+}
@@ -0,0 +1,207 @@
+package com.acaloop.acaloop;
+
+/**
+ * Real-time time-stretch and pitch-shift of a mono layer.
+ *
+ * Tempo is changed with WSOLA: the layer is cut into overlapping Hann windowed frames
+ * which are overlap-added at a fixed synthesis hop, while the analysis hop through the
+ * source follows the speed. Each frame is nudged within a small tolerance to where it best
+ * lines up with the natural continuation of the previous one, which keeps voices free of
+ * the phasiness a plain overlap-add gives.
+ *
+ * Pitch is shifted by stretching by the pitch ratio and then resampling the result by the
+ * same ratio, so the duration only depends on the speed.
+ *
+ * All buffers are allocated up front and the work per synthesis hop is fixed,
+ * so it can run inside the render thread.
+ */
+public class TimeStretcher
+{
+    private final static int WINDOW = 1024;
+    private final static int HOP = WINDOW/2;
+    //How far (in frames) a frame may be moved to find a better match.
+    private final static int TOLERANCE = 256;
+    //Only every SEARCH_STEP'th offset and CORRELATION_STEP'th sample is compared,
+    //this is what bounds the cost of the search.
+    private final static int SEARCH_STEP = 2;
+    private final static int CORRELATION_STEP = 4;
+
+    private final float[] window = new float[WINDOW];
+    private final float[] overlapAdd = new float[WINDOW];
+    private final float[] searchRegion = new float[WINDOW + 2*TOLERANCE];
+    private final float[] reference = new float[HOP];
+    private final float[] ready = new float[HOP];
+    private int readyPosition;
+
+    private double analysisPosition;
+    private long previousFrameStart;
+    private boolean havePrevious;
+    //Source frames advanced per stretched frame.
+    private double rate;
+
+    //Linear interpolation state for the pitch resampler.
+    private float resampleFrom;
+    private float resampleTo;
+    private double resampleFraction;
+
+    private int expectedStartFrame = -1;
+
+    public TimeStretcher()
+    {
+        for(int i = 0; i < WINDOW; i++)
+        {
+            //Periodic hann, adds up to exactly 1 at 50% overlap.
+            window[i] = (float)(0.5 - 0.5*Math.cos(2*Math.PI*i/WINDOW));
+        }
+    }
+
+    /**
+     * Render stretched and shifted audio for a part of the loop.
+     * @param source The layer's mono samples, read as a loop
+     * @param speed Playback speed, 2 plays twice as fast
+     * @param pitch Pitch ratio, 2 is an octave up
+     * @param startFrame The loop position of the first frame, in output frames
+     * @param out Mono output in the range [-1, 1]
+     * @param frames The number of frames to render
+     */
+    public void render(SampleBuffer source, float speed, float pitch, int startFrame, float[] out, int frames)
+    {
+        if(source.getLength() == 0)
+        {
+            for(int i = 0; i < frames; i++)
+            {
+                out[i] = 0;
+            }
+            return;
+        }
+
+        if(startFrame != expectedStartFrame)
+        {
+            //Jumped (or started): restart from where the loop position lands in the source.
+            reset(source, startFrame*(double)speed, speed/pitch);
+        }
+        rate = speed/pitch;
+
+        for(int i = 0; i < frames; i++)
+        {
+            out[i] = resampleFrom + (resampleTo - resampleFrom)*(float)resampleFraction;
+            resampleFraction += pitch;
+            while(resampleFraction >= 1)
+            {
+                resampleFrom = resampleTo;
+                resampleTo = nextStretchedSample(source);
+                resampleFraction -= 1;
+            }
+        }
+        expectedStartFrame = startFrame + frames;
+    }
+
+    private void reset(SampleBuffer source, double sourcePosition, double rate)
+    {
+        this.rate = rate;
+        for(int i = 0; i < WINDOW; i++)
+        {
+            overlapAdd[i] = 0;
+        }
+        havePrevious = false;
+
+        //Run one hop before the position and throw it away,
+        //so the first output is already a full overlap of two frames.
+        analysisPosition = sourcePosition - HOP*rate;
+        produceHop(source);
+        produceHop(source);
+        readyPosition = 0;
+
+        resampleFraction = 0;
+        resampleFrom = nextStretchedSample(source);
+        resampleTo = nextStretchedSample(source);
+    }
+
+    private float nextStretchedSample(SampleBuffer source)
+    {
+        if(readyPosition == HOP)
+        {
+            produceHop(source);
+            readyPosition = 0;
+        }
+        return ready[readyPosition++];
+    }
+
+    /**
+     * Choose the next analysis frame, overlap-add it and move one synthesis hop worth of output into the ready buffer.
+     */
+    private void produceHop(SampleBuffer source)
+    {
+        long nominal = (long)Math.floor(analysisPosition);
+        long frameStart = nominal;
+
+        if(havePrevious)
+        {
+            copyLooped(source, previousFrameStart + HOP, reference, HOP);
+            copyLooped(source, nominal - TOLERANCE, searchRegion, searchRegion.length);
+
+            float bestScore = -Float.MAX_VALUE;
+            int bestOffset = TOLERANCE;
+            for(int offset = 0; offset <= 2*TOLERANCE; offset += SEARCH_STEP)
+            {
+                float score = 0;
+                for(int i = 0; i < HOP; i += CORRELATION_STEP)
+                {
+                    score += reference[i]*searchRegion[offset + i];
+                }
+                if(score > bestScore)
+                {
+                    bestScore = score;
+                    bestOffset = offset;
+                }
+            }
+            frameStart = nominal - TOLERANCE + bestOffset;
+            for(int i = 0; i < WINDOW; i++)
+            {
+                overlapAdd[i] += window[i]*searchRegion[bestOffset + i];
+            }
+        }
+        else
+        {
+            copyLooped(source, frameStart, searchRegion, WINDOW);
+            for(int i = 0; i < WINDOW; i++)
+            {
+                overlapAdd[i] += window[i]*searchRegion[i];
+            }
+        }
+
+        System.arraycopy(overlapAdd, 0, ready, 0, HOP);
+        System.arraycopy(overlapAdd, HOP, overlapAdd, 0, HOP);
+        for(int i = HOP; i < WINDOW; i++)
+        {
+            overlapAdd[i] = 0;
+        }
+
+        previousFrameStart = frameStart;
+        havePrevious = true;
+        analysisPosition += HOP*rate;
+        //Keep the position bounded, the source is a loop anyway.
+        if(analysisPosition >= source.getLength())
+        {
+            analysisPosition -= source.getLength();
+            previousFrameStart -= source.getLength();
+        }
+    }
+
+    /**
+     * Copy samples out of the source as floats, wrapping around its ends.
+     */
+    private static void copyLooped(SampleBuffer source, long start, float[] destination, int length)
+    {
+        int sourceLength = source.getLength();
+        int index = (int)(((start % sourceLength) + sourceLength) % sourceLength);
+        for(int i = 0; i < length; i++)
+        {
+            destination[i] = source.get(index)/(float)Short.MAX_VALUE;
+            if(++index == sourceLength)
+            {
+                index = 0;
+            }
+        }
+    }
+}
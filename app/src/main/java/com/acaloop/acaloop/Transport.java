@@ -0,0 +1,415 @@
+package com.acaloop.acaloop;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The loop's clock. It only ever advances inside the render thread, one block at a time,
+ * so every transition it schedules lands on an exact frame of the timeline no matter when
+ * the button behind it was pressed.
+ *
+ * Other threads only request transitions (stop, record arm and disarm). The render thread
+ * picks the requests up at the start of its next block and resolves them to the next beat,
+ * bar or loop boundary. Playback transitions are smoothed with short equal-power fades.
+ */
+public class Transport
+{
+    public enum Quantize
+    {
+        NONE, BEAT, BAR, LOOP
+    }
+
+    //5ms at 44.1kHz, short enough to not be heard as a fade, long enough to not click.
+    public final static int FADE_FRAMES = 220;
+    public final static int DEFAULT_BEATS_PER_BAR = 4;
+
+    private final static int NO_REQUEST = -1;
+
+    private final AtomicInteger stopRequest = new AtomicInteger(NO_REQUEST);
+    private final AtomicInteger armRequest = new AtomicInteger(NO_REQUEST);
+    private final AtomicInteger disarmRequest = new AtomicInteger(NO_REQUEST);
+
+    private volatile Quantize quantize = Quantize.BAR;
+    private volatile int beatsPerBar = DEFAULT_BEATS_PER_BAR;
+    private volatile int barsPerLoop = 1;
+
+    //Everything below belongs to the render thread, apart from the volatile results it publishes.
+    private int loopLengthInFrames;
+    //Timeline frame where the current loop was first started, moves when switching scenes.
+    private long loopOrigin;
+    private boolean looping;
+    private long position;
+    private volatile long renderedFrames;
+    private volatile boolean stopped = true;
+
+    private long stopFrame = -1;
+    private long fadeInEnd;
+    private volatile long recordStartFrame = -1;
+    private volatile long recordStopFrame = -1;
+
+    /**
+     * Start the timeline from the top of the loop. Starting always lands on the loop start,
+     * which is a boundary of every grid, and fades in.
+     * Called by whoever starts playback, while the transport is stopped and before the render thread exists,
+     * so the render thread sees everything set here when it starts.
+     * @param loopLengthInFrames Length of the loop
+     * @param looping False to play the loop once and stop at its end
+     */
+    public void start(int loopLengthInFrames, boolean looping)
+    {
+        this.loopLengthInFrames = loopLengthInFrames;
+        this.looping = looping;
+        loopOrigin = 0;
+        position = 0;
+        renderedFrames = 0;
+        stopFrame = looping ? -1 : loopLengthInFrames;
+        fadeInEnd = looping ? FADE_FRAMES : 0;
+        stopRequest.set(NO_REQUEST);
+        stopped = false;
+    }
+
+    /**
+     * Ask for playback to stop at the next boundary of the current quantization.
+     */
+    public void requestStop()
+    {
+        stopRequest.set(quantize.ordinal());
+    }
+
+    /**
+     * Ask for playback to stop right away (after a fade).
+     */
+    public void requestStopNow()
+    {
+        stopRequest.set(Quantize.NONE.ordinal());
+    }
+
+    /**
+     * Arm recording: the take will start at the next boundary.
+     */
+    public void armRecord()
+    {
+        recordStartFrame = -1;
+        recordStopFrame = -1;
+        disarmRequest.set(NO_REQUEST);
+        armRequest.set(quantize.ordinal());
+    }
+
+    /**
+     * Arm recording with a start frame that's already been decided, possibly in the past,
+     * for a take committed from the pre-roll.
+     * @param frame The timeline frame the take starts at
+     */
+    public void armRecordFrom(long frame)
+    {
+        armRequest.set(NO_REQUEST);
+        disarmRequest.set(NO_REQUEST);
+        recordStopFrame = -1;
+        recordStartFrame = frame;
+    }
+
+    /**
+     * Arm recording between two frames that have already been decided, for a take punched in over part of the loop.
+     * Disarming doesn't move the end, the take always covers the whole region.
+     * @param startFrame The timeline frame the take starts at
+     * @param stopFrame The timeline frame the take ends at
+     */
+    public void armRecordBetween(long startFrame, long stopFrame)
+    {
+        armRequest.set(NO_REQUEST);
+        disarmRequest.set(NO_REQUEST);
+        recordStartFrame = startFrame;
+        recordStopFrame = stopFrame;
+    }
+
+    /**
+     * Disarm recording: the take will end at the next boundary.
+     */
+    public void disarmRecord()
+    {
+        disarmRequest.set(quantize.ordinal());
+    }
+
+    /**
+     * Pick up requests made since the last block, and resolve them to frames on the timeline.
+     * Called by the render thread at the start of every block.
+     */
+    public void beginBlock()
+    {
+        int request = armRequest.getAndSet(NO_REQUEST);
+        if(request != NO_REQUEST)
+        {
+            recordStartFrame = nextBoundary(position, Quantize.values()[request]);
+        }
+
+        request = disarmRequest.getAndSet(NO_REQUEST);
+        if(request != NO_REQUEST && recordStopFrame < 0)
+        {
+            long start = recordStartFrame < 0 ? position : recordStartFrame;
+            recordStopFrame = Math.max(start, nextBoundary(position, Quantize.values()[request]));
+        }
+
+        request = stopRequest.getAndSet(NO_REQUEST);
+        if(request != NO_REQUEST)
+        {
+            long frame = nextBoundary(position, Quantize.values()[request]);
+            stopFrame = stopFrame < 0 ? frame : Math.min(stopFrame, frame);
+        }
+    }
+
+    /**
+     * Carry on with a different loop from some frame on, e.g. when switching scenes.
+     * Called by the render thread.
+     * @param frame The timeline frame the new loop starts at
+     * @param loopLengthInFrames Length of the new loop
+     */
+    public void switchLoop(long frame, int loopLengthInFrames)
+    {
+        loopOrigin = frame;
+        this.loopLengthInFrames = loopLengthInFrames;
+        if(!looping)
+        {
+            stopFrame = frame + loopLengthInFrames;
+        }
+    }
+
+    /**
+     * Stop (with a fade) at the given frame, unless already stopping earlier.
+     * Called by the render thread.
+     * @param frame Timeline frame to stop at
+     */
+    public void stopAt(long frame)
+    {
+        stopFrame = stopFrame < 0 ? frame : Math.min(stopFrame, frame);
+    }
+
+    /**
+     * Apply the transitions falling in this block to the mixed audio and advance the clock.
+     * @param stereo Interleaved stereo mix of the block
+     * @param frames Frames in the block
+     * @return The number of frames that should actually be played, less than frames if playback stops in this block
+     */
+    public int endBlock(float[] stereo, int frames)
+    {
+        int playable = frames;
+        for(int i = 0; i < frames; i++)
+        {
+            long frame = position + i;
+            float gain = 1;
+            if(frame < fadeInEnd)
+            {
+                gain = fadeIn((frame - (fadeInEnd - FADE_FRAMES))/(float)FADE_FRAMES);
+            }
+            if(stopFrame >= 0 && frame >= stopFrame)
+            {
+                if(!looping || frame >= stopFrame + FADE_FRAMES)
+                {
+                    playable = i;
+                    break;
+                }
+                gain *= fadeOut((frame - stopFrame)/(float)FADE_FRAMES);
+            }
+            if(gain != 1)
+            {
+                stereo[2*i] *= gain;
+                stereo[2*i + 1] *= gain;
+            }
+        }
+
+        position += playable;
+        renderedFrames = position;
+        if(playable < frames)
+        {
+            //A take that was still going ends with playback.
+            if(recordStartFrame >= 0 && recordStopFrame < 0)
+            {
+                recordStopFrame = Math.max(recordStartFrame, position);
+            }
+            stopped = true;
+        }
+        return playable;
+    }
+
+    /**
+     * @return Gain for a fade in, t going from 0 to 1. Equal power, so a crossfade keeps its loudness.
+     */
+    public static float fadeIn(float t)
+    {
+        return (float)Math.sin(Math.PI/2*Math.max(0, Math.min(1, t)));
+    }
+
+    /**
+     * @return Gain for a fade out, t going from 0 to 1.
+     */
+    public static float fadeOut(float t)
+    {
+        return (float)Math.cos(Math.PI/2*Math.max(0, Math.min(1, t)));
+    }
+
+    /**
+     * @param frame Timeline frame
+     * @param quantize The grid to snap to
+     * @return The first frame at or after the given frame that falls on the grid
+     */
+    public long nextBoundary(long frame, Quantize quantize)
+    {
+        if(loopLengthInFrames <= 0 || quantize == Quantize.NONE)
+        {
+            return frame;
+        }
+
+        long loopStart = frame - toLoopFrame(frame);
+        double divisionLength = loopLengthInFrames/(double)getDivisions(quantize);
+        int division = (int)Math.ceil((frame - loopStart)/divisionLength);
+        //Round per boundary rather than accumulating, so the grid never drifts away from the loop.
+        return loopStart + Math.round(division*divisionLength);
+    }
+
+    /**
+     * @param frame Timeline frame
+     * @param quantize The grid to snap to
+     * @return The last frame at or before the given frame that falls on the grid
+     */
+    public long previousBoundary(long frame, Quantize quantize)
+    {
+        if(loopLengthInFrames <= 0 || quantize == Quantize.NONE)
+        {
+            return frame;
+        }
+
+        long loopStart = frame - toLoopFrame(frame);
+        double divisionLength = loopLengthInFrames/(double)getDivisions(quantize);
+        int division = (int)((frame - loopStart)/divisionLength);
+        long boundary = loopStart + Math.round(division*divisionLength);
+        //Rounding may put the boundary a frame past us.
+        return boundary <= frame ? boundary : loopStart + Math.round((division - 1)*divisionLength);
+    }
+
+    /**
+     * @param frame Timeline frame
+     * @param quantize The grid to snap to
+     * @return The grid frame closest to the given frame, earlier or later
+     */
+    public long nearestBoundary(long frame, Quantize quantize)
+    {
+        long previous = previousBoundary(frame, quantize);
+        long next = nextBoundary(frame, quantize);
+        return frame - previous <= next - frame ? previous : next;
+    }
+
+    /**
+     * @return How many parts the loop is split into by the given grid
+     */
+    private int getDivisions(Quantize quantize)
+    {
+        switch(quantize)
+        {
+            case BEAT:
+                return barsPerLoop*beatsPerBar;
+            case BAR:
+                return barsPerLoop;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * @param frame Timeline frame
+     * @param loopFrame A position within the loop
+     * @return The first timeline frame at or after the given frame that's at that position in the loop
+     */
+    public long nextOccurrence(long frame, int loopFrame)
+    {
+        if(loopLengthInFrames <= 0)
+        {
+            return frame;
+        }
+        return frame + ((loopFrame - toLoopFrame(frame)) % loopLengthInFrames + loopLengthInFrames) % loopLengthInFrames;
+    }
+
+    /**
+     * @param frame A timeline frame
+     * @return The position of the frame within the loop
+     */
+    public int toLoopFrame(long frame)
+    {
+        if(loopLengthInFrames <= 0)
+        {
+            return 0;
+        }
+        long loopFrame = (frame - loopOrigin) % loopLengthInFrames;
+        return (int)(loopFrame < 0 ? loopFrame + loopLengthInFrames : loopFrame);
+    }
+
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * @return Frames rendered since the transport started, safe to read from any thread.
+     */
+    public long getRenderedFrames()
+    {
+        return renderedFrames;
+    }
+
+    public boolean isStopped()
+    {
+        return stopped;
+    }
+
+    public boolean isLooping()
+    {
+        return looping;
+    }
+
+    public int getLoopLengthInFrames()
+    {
+        return loopLengthInFrames;
+    }
+
+    /**
+     * @return The timeline frame the armed take starts at, -1 until the render thread has scheduled it.
+     */
+    public long getRecordStartFrame()
+    {
+        return recordStartFrame;
+    }
+
+    /**
+     * @return The timeline frame the take ends at, -1 until it's been scheduled.
+     */
+    public long getRecordStopFrame()
+    {
+        return recordStopFrame;
+    }
+
+    public Quantize getQuantize()
+    {
+        return quantize;
+    }
+
+    public void setQuantize(Quantize quantize)
+    {
+        this.quantize = quantize;
+    }
+
+    /**
+     * Describe how the loop divides into bars and beats, for quantizing to them.
+     */
+    public void setGrid(int barsPerLoop, int beatsPerBar)
+    {
+        this.barsPerLoop = Math.max(1, barsPerLoop);
+        this.beatsPerBar = Math.max(1, beatsPerBar);
+    }
+
+    public int getBarsPerLoop()
+    {
+        return barsPerLoop;
+    }
+
+    public int getBeatsPerBar()
+    {
+        return beatsPerBar;
+    }
+}
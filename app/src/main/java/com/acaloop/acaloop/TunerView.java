@@ -0,0 +1,48 @@
+package com.acaloop.acaloop;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.widget.TextView;
+
+import java.util.Observable;
+import java.util.Observer;
+
+/**
+ * Shows the note being sung and how far off it is, by observing the recorder's pitch detector.
+ */
+public class TunerView extends TextView implements Observer
+{
+    public TunerView(Context context, AttributeSet attrs)
+    {
+        super(context, attrs);
+    }
+
+    /**
+     * Show the latest pitch.
+     * @param observable The pitch detector that we are watching
+     * @param data Not used
+     */
+    @Override
+    public void update(Observable observable, Object data)
+    {
+        //Read once, the detector may move on while we're formatting.
+        final float frequency = ((PitchDetector)observable).getFrequency();
+
+        //Need to set text on the UI thread.
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if(frequency <= 0)
+                {
+                    setText(R.string.tuner_idle);
+                    return;
+                }
+                int note = PitchDetector.getMidiNote(frequency);
+                setText(getContext().getString(R.string.tuner_reading,
+                        PitchDetector.getNoteName(note), PitchDetector.getOctave(note), PitchDetector.getCents(frequency)));
+            }
+        });
+    }
+}
@@ -0,0 +1,197 @@
+package com.acaloop.acaloop;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.InvalidPropertiesFormatException;
+
+/**
+ * Reads 16-bit PCM out of a RIFF/WAVE file through a FileChannel,
+ * using a pooled direct buffer so samples go from the file straight into the caller's short[].
+ */
+public class WavReader
+{
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final DirectBufferPool pool;
+    private final DirectBufferPool.Block block;
+
+    private int sampleRate;
+    private int channelCount;
+    private long dataStart;
+    private long dataSizeInBytes;
+    private long bytesRead;
+
+    /**
+     * @param source The WAV file to read
+     * @param pool The pool the read buffer is borrowed from
+     * @throws IOException If the file can't be read, or isn't 16-bit PCM
+     */
+    public WavReader(File source, DirectBufferPool pool) throws IOException
+    {
+        this.pool = pool;
+        file = new RandomAccessFile(source, "r");
+        channel = file.getChannel();
+        block = pool.acquire();
+
+        try
+        {
+            readHeader();
+        }
+        catch(IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Walk the chunks until we find the format and the data.
+     */
+    private void readHeader() throws IOException
+    {
+        ByteBuffer chunk = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(chunk, 0, 12);
+        if(chunk.getInt(0) != fourCC("RIFF") || chunk.getInt(8) != fourCC("WAVE"))
+        {
+            throw new InvalidPropertiesFormatException("Not a RIFF/WAVE file");
+        }
+
+        long position = 12;
+        boolean haveFormat = false;
+        long fileSize = channel.size();
+        while(position + 8 <= fileSize)
+        {
+            readFully(chunk, position, 8);
+            int id = chunk.getInt(0);
+            long size = chunk.getInt(4) & 0xFFFFFFFFL;
+            position += 8;
+
+            if(id == fourCC("fmt "))
+            {
+                readFully(chunk, position, 16);
+                int format = chunk.getShort(0);
+                channelCount = chunk.getShort(2);
+                sampleRate = chunk.getInt(4);
+                int bitsPerSample = chunk.getShort(14);
+                if(format != 1 || bitsPerSample != 16)
+                {
+                    throw new InvalidPropertiesFormatException("Only 16-bit PCM is supported. Format: " + format + " bits: " + bitsPerSample);
+                }
+                haveFormat = true;
+            }
+            else if(id == fourCC("data"))
+            {
+                if(!haveFormat)
+                {
+                    throw new InvalidPropertiesFormatException("Data chunk before format chunk");
+                }
+                dataStart = position;
+                //A writer that never got to patch the header leaves 0 there, streaming writers often leave 0xFFFFFFFF.
+                //Either way the data runs to the end of the file.
+                boolean unpatched = size == 0 || size == 0xFFFFFFFFL;
+                dataSizeInBytes = unpatched ? fileSize - position : Math.min(size, fileSize - position);
+                return;
+            }
+            //Chunks are padded to an even size.
+            position += size + (size & 1);
+        }
+        throw new InvalidPropertiesFormatException("No data chunk found");
+    }
+
+    private void readFully(ByteBuffer buffer, long position, int length) throws IOException
+    {
+        buffer.clear();
+        buffer.limit(length);
+        while(buffer.hasRemaining())
+        {
+            if(channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new InvalidPropertiesFormatException("Unexpected end of file");
+            }
+        }
+    }
+
+    private static int fourCC(String id)
+    {
+        return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+    }
+
+    /**
+     * Read interleaved samples.
+     * @param data Destination for the samples
+     * @param offset Index in data of the first sample to read
+     * @param length Maximum number of samples to read
+     * @return The number of samples read, -1 at the end of the data
+     * @throws IOException If reading fails
+     */
+    public int read(short[] data, int offset, int length) throws IOException
+    {
+        if(bytesRead >= dataSizeInBytes)
+        {
+            return -1;
+        }
+
+        int total = 0;
+        while(length > 0 && bytesRead < dataSizeInBytes)
+        {
+            int bytes = (int)Math.min(Math.min(length*2L, block.bytes.capacity()), dataSizeInBytes - bytesRead) & ~1;
+            if(bytes == 0)
+            {
+                break;
+            }
+            block.clear();
+            block.bytes.limit(bytes);
+            int n = channel.read(block.bytes, dataStart + bytesRead);
+            if(n <= 0)
+            {
+                break;
+            }
+            //Only whole samples, the odd byte is read again next time.
+            n &= ~1;
+            block.shorts.limit(n/2);
+            block.shorts.get(data, offset, n/2);
+
+            bytesRead += n;
+            offset += n/2;
+            length -= n/2;
+            total += n/2;
+        }
+        return total;
+    }
+
+    /**
+     * @param frame The frame to continue reading from
+     */
+    public void seek(long frame)
+    {
+        bytesRead = Math.min(dataSizeInBytes, frame*channelCount*2);
+    }
+
+    public int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    public int getChannelCount()
+    {
+        return channelCount;
+    }
+
+    /**
+     * @return The length of the audio in frames
+     */
+    public long getLengthInFrames()
+    {
+        return dataSizeInBytes/(channelCount*2);
+    }
+
+    public void close() throws IOException
+    {
+        pool.release(block);
+        file.close();
+    }
+}
@@ -0,0 +1,228 @@
+package com.acaloop.acaloop;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams 16-bit PCM into a RIFF/WAVE file.
+ * Samples are copied straight from the caller's short[] into pooled direct buffers,
+ * which are handed to the FileChannel a few at a time with a single gathering write.
+ * The sizes in the header aren't known until the end, so they're patched in on close.
+ */
+public class WavWriter
+{
+    public final static int HEADER_SIZE = 44;
+    //How many full buffers are collected before they're written in one go.
+    private final static int GATHER_COUNT = 4;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final DirectBufferPool pool;
+    private final int channelCount;
+
+    private final ByteBuffer header;
+    private final ByteBuffer[] pending = new ByteBuffer[GATHER_COUNT + 1];
+    private final DirectBufferPool.Block[] pendingBlocks = new DirectBufferPool.Block[GATHER_COUNT];
+    private int pendingCount;
+    private boolean headerWritten;
+    private DirectBufferPool.Block current;
+
+    private long dataSizeInBytes;
+
+    /**
+     * @param destination The file to write, will be truncated
+     * @param sampleRate Sample rate of the audio
+     * @param channelCount Number of interleaved channels
+     * @param pool The pool that buffers are borrowed from
+     * @throws IOException If the file can't be opened
+     */
+    public WavWriter(File destination, int sampleRate, int channelCount, DirectBufferPool pool) throws IOException
+    {
+        this.pool = pool;
+        this.channelCount = channelCount;
+
+        file = new RandomAccessFile(destination, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+
+        header = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        putHeader(header, sampleRate, channelCount, 0);
+        header.flip();
+    }
+
+    /**
+     * Fill in a canonical 44 byte PCM header.
+     * @param buffer Buffer to write the header to
+     * @param sampleRate Sample rate of the audio
+     * @param channelCount Number of interleaved channels
+     * @param dataSizeInBytes Size of the sample data following the header
+     */
+    static void putHeader(ByteBuffer buffer, int sampleRate, int channelCount, long dataSizeInBytes)
+    {
+        int blockAlign = channelCount*2;
+        buffer.put((byte)'R').put((byte)'I').put((byte)'F').put((byte)'F');
+        buffer.putInt((int)(HEADER_SIZE - 8 + dataSizeInBytes));
+        buffer.put((byte)'W').put((byte)'A').put((byte)'V').put((byte)'E');
+        buffer.put((byte)'f').put((byte)'m').put((byte)'t').put((byte)' ');
+        buffer.putInt(16);
+        buffer.putShort((short)1); //PCM
+        buffer.putShort((short)channelCount);
+        buffer.putInt(sampleRate);
+        buffer.putInt(sampleRate*blockAlign);
+        buffer.putShort((short)blockAlign);
+        buffer.putShort((short)16);
+        buffer.put((byte)'d').put((byte)'a').put((byte)'t').put((byte)'a');
+        buffer.putInt((int)dataSizeInBytes);
+    }
+
+    /**
+     * Append interleaved samples to the file.
+     * @param data Source samples
+     * @param offset Index of the first sample in data
+     * @param length Number of samples, should be a whole number of frames
+     * @throws IOException If writing to the file fails
+     */
+    public void write(short[] data, int offset, int length) throws IOException
+    {
+        while(length > 0)
+        {
+            if(current == null)
+            {
+                current = pool.acquire();
+            }
+
+            int toCopy = Math.min(length, current.shorts.remaining());
+            current.shorts.put(data, offset, toCopy);
+            offset += toCopy;
+            length -= toCopy;
+            dataSizeInBytes += toCopy*2;
+
+            if(!current.shorts.hasRemaining())
+            {
+                queueCurrent();
+                if(pendingCount == GATHER_COUNT)
+                {
+                    writePending();
+                }
+            }
+        }
+    }
+
+    private void queueCurrent()
+    {
+        current.flipShorts();
+        pendingBlocks[pendingCount++] = current;
+        current = null;
+    }
+
+    /**
+     * Write every queued buffer (and the header, the first time) with one gathering write.
+     */
+    private void writePending() throws IOException
+    {
+        int count = 0;
+        if(!headerWritten)
+        {
+            pending[count++] = header;
+        }
+        for(int i = 0; i < pendingCount; i++)
+        {
+            pending[count++] = pendingBlocks[i].bytes;
+        }
+
+        long remaining = 0;
+        for(int i = 0; i < count; i++)
+        {
+            remaining += pending[i].remaining();
+        }
+        while(remaining > 0)
+        {
+            remaining -= channel.write(pending, 0, count);
+        }
+        headerWritten = true;
+
+        for(int i = 0; i < pendingCount; i++)
+        {
+            pool.release(pendingBlocks[i]);
+            pendingBlocks[i] = null;
+        }
+        for(int i = 0; i < count; i++)
+        {
+            pending[i] = null;
+        }
+        pendingCount = 0;
+    }
+
+    /**
+     * Write out everything buffered so far and bring the header up to date,
+     * so the file is a valid WAV file of everything written up to this point.
+     * @param sync True to also force the data to the storage device
+     * @throws IOException If writing to the file fails
+     */
+    public void flush(boolean sync) throws IOException
+    {
+        if(current != null && current.shorts.position() > 0)
+        {
+            queueCurrent();
+        }
+        writePending();
+        patchHeader();
+        if(sync)
+        {
+            channel.force(false);
+        }
+    }
+
+    private void patchHeader() throws IOException
+    {
+        header.clear();
+        header.putInt((int)(HEADER_SIZE - 8 + dataSizeInBytes));
+        header.flip();
+        channel.write(header, 4);
+
+        header.clear();
+        header.putInt((int)dataSizeInBytes);
+        header.flip();
+        channel.write(header, 40);
+    }
+
+    /**
+     * Flush the remaining samples, patch the header and close the file.
+     * @throws IOException If writing to the file fails
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            flush(false);
+        }
+        finally
+        {
+            if(current != null)
+            {
+                pool.release(current);
+                current = null;
+            }
+            //Left queued if the flush failed.
+            for(int i = 0; i < pendingCount; i++)
+            {
+                pool.release(pendingBlocks[i]);
+                pendingBlocks[i] = null;
+            }
+            pendingCount = 0;
+            file.close();
+        }
+    }
+
+    /**
+     * @return The number of frames written so far
+     */
+    public long getFramesWritten()
+    {
+        return dataSizeInBytes/(channelCount*2);
+    }
+}